@@ -0,0 +1,82 @@
+package com.maurosalani.push_notification.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.maurosalani.push_notification.CryptoService;
+import com.maurosalani.push_notification.ParsedSubscriptionKeys;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+/**
+ * Encryption of a message for one user agent, as done for every subscriber of
+ * a broadcast
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+	@Param({ "16", "1024", "3993" })
+	private int payloadSize;
+
+	// the plaintext is padded up to this size, 0 for no padding
+	@Param({ "0", "4000" })
+	private int paddingSize;
+
+	private CryptoService cryptoService;
+
+	private SubscriptionKeys keys;
+
+	private ParsedSubscriptionKeys parsedKeys;
+
+	private byte[] plainText;
+
+	private String message;
+
+	@Setup
+	public void setup() throws Exception {
+		this.cryptoService = new CryptoService();
+		this.keys = Fixtures.keys(this.cryptoService);
+		this.parsedKeys = this.cryptoService.parseSubscriptionKeys(this.keys);
+		this.plainText = this.cryptoService.preparePlaintext(Fixtures.payload(this.payloadSize), this.paddingSize);
+		this.message = new String(new char[this.payloadSize]).replace('\0', 'a');
+	}
+
+	/**
+	 * The plaintext and the keys prepared once, as in a broadcast
+	 */
+	@Benchmark
+	public byte[] encryptPrepared() throws Exception {
+		return this.cryptoService.encrypt(this.plainText, this.parsedKeys);
+	}
+
+	/**
+	 * The plaintext built and the keys decoded for every message
+	 */
+	@Benchmark
+	public byte[] encryptFromStrings() throws Exception {
+		return this.cryptoService.encrypt(this.message, this.keys.getP256dh(), this.keys.getAuth(),
+				this.paddingSize);
+	}
+
+	@Benchmark
+	public byte[] preparePlaintext() {
+		return this.cryptoService.preparePlaintext(this.message.getBytes(StandardCharsets.UTF_8), this.paddingSize);
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.maurosalani.push_notification.benchmark;
+
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.maurosalani.push_notification.CryptoService;
+import com.maurosalani.push_notification.ParsedSubscriptionKeys;
+import com.maurosalani.push_notification.VapidTokenCache;
+import com.maurosalani.push_notification.dto.PushMessage;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+/**
+ * Work done once per subscriber or once per push service besides the
+ * encryption: decoding the keys, signing the VAPID token, serializing the
+ * message
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodingBenchmark {
+
+	private static final String ORIGIN = "https://push.example.com";
+
+	private CryptoService cryptoService;
+
+	private SubscriptionKeys keys;
+
+	private Algorithm vapidAlgorithm;
+
+	private VapidTokenCache vapidTokens;
+
+	private ObjectMapper objectMapper;
+
+	private PushMessage message;
+
+	@Setup
+	public void setup() {
+		this.cryptoService = new CryptoService();
+		this.keys = Fixtures.keys(this.cryptoService);
+		KeyPair serverKeys = this.cryptoService.generateKeyPair();
+		this.vapidAlgorithm = Algorithm.ECDSA256((ECPublicKey) serverKeys.getPublic(),
+				(ECPrivateKey) serverKeys.getPrivate());
+		this.vapidTokens = new VapidTokenCache(this.vapidAlgorithm,
+				Base64.getUrlEncoder().withoutPadding().encodeToString(
+						CryptoService.toUncompressedECPublicKey((ECPublicKey) serverKeys.getPublic())),
+				"mailto:example@example.com");
+		this.objectMapper = new ObjectMapper();
+		this.message = new PushMessage("news", "A new article has been published on the site");
+	}
+
+	@Benchmark
+	public ECPublicKey fromUncompressedECPublicKey() throws Exception {
+		return this.cryptoService.fromUncompressedECPublicKey(this.keys.getP256dh());
+	}
+
+	@Benchmark
+	public ParsedSubscriptionKeys parseSubscriptionKeys() throws Exception {
+		return this.cryptoService.parseSubscriptionKeys(this.keys);
+	}
+
+	/**
+	 * A token signed for every request
+	 */
+	@Benchmark
+	public String signVapidToken() {
+		return JWT.create().withAudience(ORIGIN).withExpiresAt(new Date(System.currentTimeMillis() + 3_600_000))
+				.withSubject("mailto:example@example.com").sign(this.vapidAlgorithm);
+	}
+
+	/**
+	 * The token signed once for each origin and reused
+	 */
+	@Benchmark
+	public String cachedVapidHeader() {
+		return this.vapidTokens.authorizationHeader(ORIGIN);
+	}
+
+	@Benchmark
+	public byte[] serializePushMessage() throws Exception {
+		return this.objectMapper.writeValueAsBytes(this.message);
+	}
+
+}
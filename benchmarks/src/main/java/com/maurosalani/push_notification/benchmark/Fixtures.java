@@ -0,0 +1,47 @@
+package com.maurosalani.push_notification.benchmark;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.util.Base64;
+
+import com.maurosalani.push_notification.CryptoService;
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+/**
+ * Subscriptions with real user agent keys, as a browser would send them
+ */
+final class Fixtures {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private Fixtures() {
+	}
+
+	static Subscription[] subscriptions(CryptoService cryptoService, int count) {
+		Subscription[] subscriptions = new Subscription[count];
+		for (int i = 0; i < count; i++) {
+			subscriptions[i] = new Subscription("user" + i, "https://push.example.com/send/" + i, null,
+					keys(cryptoService));
+		}
+		return subscriptions;
+	}
+
+	static SubscriptionKeys keys(CryptoService cryptoService) {
+		KeyPair keyPair = cryptoService.generateKeyPair();
+		byte[] authSecret = new byte[16];
+		RANDOM.nextBytes(authSecret);
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return new SubscriptionKeys(
+				encoder.encodeToString(CryptoService.toUncompressedECPublicKey((ECPublicKey) keyPair.getPublic())),
+				encoder.encodeToString(authSecret));
+	}
+
+	static byte[] payload(int size) {
+		byte[] payload = new byte[size];
+		RANDOM.nextBytes(payload);
+		return payload;
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.maurosalani.push_notification.benchmark;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.maurosalani.push_notification.CryptoService;
+import com.maurosalani.push_notification.EphemeralKeyPairPool;
+import com.maurosalani.push_notification.SubscriberKeyCache;
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Everything a broadcast does for one subscriber before sending the request:
+ * looking up its parsed keys and encrypting the shared plaintext for it. The
+ * throughput is the number of subscribers prepared per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreparationBenchmark {
+
+	private static final int SUBSCRIBERS = 4096;
+
+	// ephemeral key pairs generated in background, 0 to generate them inline
+	@Param({ "0", "1024" })
+	private int ephemeralPoolSize;
+
+	private EphemeralKeyPairPool ephemeralKeys;
+
+	private CryptoService cryptoService;
+
+	private SubscriberKeyCache keyCache;
+
+	private Subscription[] subscriptions;
+
+	private byte[] plainText;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int next;
+
+		Subscription next(Subscription[] subscriptions) {
+			return subscriptions[this.next++ & (subscriptions.length - 1)];
+		}
+
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		this.ephemeralKeys = this.ephemeralPoolSize > 0 ? new EphemeralKeyPairPool(this.ephemeralPoolSize, 1) : null;
+		this.cryptoService = new CryptoService(this.ephemeralKeys);
+		this.keyCache = new SubscriberKeyCache(this.cryptoService, SUBSCRIBERS, Duration.ofHours(1));
+		this.subscriptions = Fixtures.subscriptions(this.cryptoService, SUBSCRIBERS);
+		for (Subscription subscription : this.subscriptions) {
+			this.keyCache.put(subscription);
+		}
+		this.plainText = this.cryptoService.preparePlaintext(Fixtures.payload(256), 0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (this.ephemeralKeys != null) {
+			this.ephemeralKeys.shutdown();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public byte[] prepareSingleThreaded(Cursor cursor) throws Exception {
+		return prepare(cursor);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public byte[] prepareOnAllCores(Cursor cursor) throws Exception {
+		return prepare(cursor);
+	}
+
+	private byte[] prepare(Cursor cursor) throws Exception {
+		Subscription subscription = cursor.next(this.subscriptions);
+		return this.cryptoService.encrypt(this.plainText, this.keyCache.get(subscription));
+	}
+
+}
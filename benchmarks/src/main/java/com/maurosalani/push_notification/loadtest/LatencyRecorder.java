@@ -0,0 +1,46 @@
+package com.maurosalani.push_notification.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Time from the start of a broadcast to the arrival of each of its requests at
+ * the push service
+ */
+public class LatencyRecorder {
+
+	private final long startNanos;
+
+	private long[] latencies = new long[1024];
+
+	private int size;
+
+	public LatencyRecorder(long startNanos) {
+		this.startNanos = startNanos;
+	}
+
+	public synchronized void record(long arrivalNanos) {
+		if (this.size == this.latencies.length) {
+			this.latencies = Arrays.copyOf(this.latencies, this.size * 2);
+		}
+		this.latencies[this.size++] = arrivalNanos - this.startNanos;
+	}
+
+	public synchronized int count() {
+		return this.size;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in milliseconds, or 0 if nothing was recorded
+	 */
+	public synchronized double percentileMillis(double percentile) {
+		if (this.size == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(this.latencies, this.size);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1_000_000.0;
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.maurosalani.push_notification.loadtest;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.core.env.Environment;
+
+import com.maurosalani.push_notification.AppProperties;
+import com.maurosalani.push_notification.CryptoService;
+import com.maurosalani.push_notification.PushController;
+import com.maurosalani.push_notification.ServerKeys;
+import com.maurosalani.push_notification.SubscriptionsHandler;
+import com.maurosalani.push_notification.delivery.BroadcastReport;
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+/**
+ * Registers synthetic subscribers through {@link PushController}, broadcasts
+ * messages to them and reports how fast the {@link MockPushService} received
+ * them. Every option is a Spring property, so it can be passed as an argument:
+ *
+ * <pre>
+ * --loadtest.subscribers=10000   subscribers of the topic
+ * --loadtest.broadcasts=5        messages published one after the other
+ * --loadtest.payload-size=256    characters of each message
+ * --loadtest.latency=20          milliseconds before the push service answers
+ * --loadtest.not-found-ratio=0   answers 404
+ * --loadtest.gone-ratio=0        answers 410
+ * --loadtest.throttled-ratio=0   answers 429
+ * --loadtest.server-threads=512  threads of the push service
+ * --app.store.type=memory        any property of the application
+ * </pre>
+ */
+@SpringBootConfiguration
+@EnableConfigurationProperties
+@ComponentScan("com.maurosalani.push_notification")
+public class LoadTest {
+
+	private static final String TOPIC = "loadtest";
+
+	public static void main(String[] args) throws Exception {
+		SpringApplication application = new SpringApplication(LoadTest.class);
+		application.setWebApplicationType(WebApplicationType.NONE);
+		// system properties override the application.properties of the application,
+		// the arguments override them
+		setIfAbsent("app.store.type", "memory");
+		setIfAbsent("app.server-public-key-path", "target/loadtest-key.public");
+		setIfAbsent("app.server-private-key-path", "target/loadtest-key.private");
+		// the mock push service
+		setIfAbsent("app.transport.push-hosts", "127.0.0.1");
+		try (ConfigurableApplicationContext context = application.run(args)) {
+			run(context);
+		}
+		System.exit(0);
+	}
+
+	private static void setIfAbsent(String property, String value) {
+		if (System.getProperty(property) == null) {
+			System.setProperty(property, value);
+		}
+	}
+
+	private static void run(ConfigurableApplicationContext context) throws Exception {
+		Environment environment = context.getEnvironment();
+		int subscribers = environment.getProperty("loadtest.subscribers", Integer.class, 10_000);
+		int broadcasts = environment.getProperty("loadtest.broadcasts", Integer.class, 5);
+		int payloadSize = environment.getProperty("loadtest.payload-size", Integer.class, 256);
+		MockPushService.Behavior behavior = new MockPushService.Behavior(
+				environment.getProperty("loadtest.latency", Long.class, 20L),
+				environment.getProperty("loadtest.not-found-ratio", Double.class, 0.0),
+				environment.getProperty("loadtest.gone-ratio", Double.class, 0.0),
+				environment.getProperty("loadtest.throttled-ratio", Double.class, 0.0));
+
+		MockPushService pushService = new MockPushService(behavior,
+				environment.getProperty("loadtest.server-threads", Integer.class, 512));
+		pushService.start();
+		try {
+			ServerKeys serverKeys = context.getBean(ServerKeys.class);
+			PushController controller = context.getBean(PushController.class);
+			SubscriptionsHandler handler = SubscriptionsHandler.getInstance(serverKeys,
+					context.getBean(AppProperties.class));
+			pushService.setVapidPublicKey(serverKeys.getPublicKeyBase64());
+
+			long registrationStart = System.nanoTime();
+			register(controller, handler, pushService, context.getBean(CryptoService.class), subscribers);
+			System.out.printf("Registered %d subscribers in %d ms%n", subscribers,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - registrationStart));
+
+			String message = new String(new char[payloadSize]).replace('\0', 'x');
+			for (int i = 0; i < broadcasts; i++) {
+				broadcast(handler, pushService, message, i);
+			}
+
+			System.out.printf("Push service answers: 201=%d 404=%d 410=%d 429=%d, invalid VAPID=%d, "
+					+ "invalid payloads=%d%n", pushService.getAnswers(201), pushService.getAnswers(404),
+					pushService.getAnswers(410), pushService.getAnswers(429), pushService.getInvalidVapid(),
+					pushService.getInvalidPayloads());
+		} finally {
+			pushService.stop();
+		}
+	}
+
+	private static void register(PushController controller, SubscriptionsHandler handler,
+			MockPushService pushService, CryptoService cryptoService, int subscribers) {
+		SecureRandom random = new SecureRandom();
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		for (int i = 0; i < subscribers; i++) {
+			KeyPair keyPair = cryptoService.generateKeyPair();
+			byte[] authSecret = new byte[16];
+			random.nextBytes(authSecret);
+			String username = "loadtest-user-" + i;
+			controller.subscribe(new Subscription(username, pushService.newEndpoint(keyPair, authSecret), null,
+					new SubscriptionKeys(
+							encoder.encodeToString(
+									CryptoService.toUncompressedECPublicKey((ECPublicKey) keyPair.getPublic())),
+							encoder.encodeToString(authSecret))));
+			handler.subscribeToTopic(username, TOPIC);
+		}
+	}
+
+	private static void broadcast(SubscriptionsHandler handler, MockPushService pushService, String message,
+			int number) throws InterruptedException {
+		long start = System.nanoTime();
+		LatencyRecorder recorder = new LatencyRecorder(start);
+		pushService.setRecorder(recorder);
+		BroadcastReport report = handler.publishMessageForTopic(message, TOPIC);
+		while (!report.isCompleted()) {
+			Thread.sleep(5);
+		}
+		long firstAttemptNanos = System.nanoTime() - start;
+		int firstAttemptRequests = recorder.count();
+		int retrying = report.getRetrying();
+		// the retried deliveries settle after the broadcast completes
+		while (report.getRetrying() > 0) {
+			Thread.sleep(5);
+		}
+		long elapsedNanos = System.nanoTime() - start;
+		pushService.setRecorder(null);
+
+		System.out.printf("Broadcast %d first attempts: %d ms, %.0f deliveries/s, retrying %d%n", number,
+				TimeUnit.NANOSECONDS.toMillis(firstAttemptNanos), firstAttemptRequests / (firstAttemptNanos / 1e9),
+				retrying);
+		System.out.printf(
+				"Broadcast %d settled: %d ms, %.0f deliveries/s, p50 %.1f ms, p99 %.1f ms, "
+						+ "sent %d, failed %d, removed %d%n",
+				number, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), recorder.count() / (elapsedNanos / 1e9),
+				recorder.percentileMillis(50), recorder.percentileMillis(99), report.getSent(), report.getFailed(),
+				report.getRemoved());
+	}
+
+}
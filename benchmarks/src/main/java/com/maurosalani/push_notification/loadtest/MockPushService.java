@@ -0,0 +1,312 @@
+package com.maurosalani.push_notification.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.maurosalani.push_notification.CryptoService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the push services of the browsers. Every request is
+ * checked as a real push service would do: the VAPID token must be signed by
+ * the application server for the origin of the endpoint, and the body must
+ * decrypt with the keys of the subscriber. The status of the answer is drawn
+ * from the configured ratios, after the configured latency.
+ */
+public class MockPushService {
+
+	/**
+	 * How the push service answers the valid requests
+	 */
+	public static final class Behavior {
+
+		private final long latencyMillis;
+
+		private final double notFoundRatio;
+
+		private final double goneRatio;
+
+		private final double throttledRatio;
+
+		public Behavior(long latencyMillis, double notFoundRatio, double goneRatio, double throttledRatio) {
+			this.latencyMillis = latencyMillis;
+			this.notFoundRatio = notFoundRatio;
+			this.goneRatio = goneRatio;
+			this.throttledRatio = throttledRatio;
+		}
+
+		int nextStatus() {
+			double draw = ThreadLocalRandom.current().nextDouble();
+			if (draw < this.notFoundRatio) {
+				return 404;
+			}
+			if (draw < this.notFoundRatio + this.goneRatio) {
+				return 410;
+			}
+			if (draw < this.notFoundRatio + this.goneRatio + this.throttledRatio) {
+				return 429;
+			}
+			return 201;
+		}
+
+	}
+
+	private static final String PATH = "/push/";
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final Behavior behavior;
+
+	private final CryptoService cryptoService = new CryptoService();
+
+	// keys of the subscribers by the id in their endpoint
+	private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+	// tokens already verified, since the application reuses them
+	private final Set<String> verifiedTokens = ConcurrentHashMap.newKeySet();
+
+	private volatile String vapidPublicKey;
+
+	private volatile LatencyRecorder recorder;
+
+	// answers by status code
+	private final AtomicLongArray statuses = new AtomicLongArray(600);
+
+	private final AtomicLong invalidVapid = new AtomicLong();
+
+	private final AtomicLong invalidPayloads = new AtomicLong();
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	public MockPushService(Behavior behavior, int threads) throws IOException {
+		this.behavior = behavior;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server.setExecutor(this.executor);
+		this.server.createContext(PATH, this::handle);
+	}
+
+	public void start() {
+		this.server.start();
+	}
+
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * The key the application server signs its tokens with, base64url encoded
+	 */
+	public void setVapidPublicKey(String vapidPublicKey) {
+		this.vapidPublicKey = vapidPublicKey;
+	}
+
+	/**
+	 * Records the arrival of every valid request from now on
+	 */
+	public void setRecorder(LatencyRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * @return the endpoint of a new subscriber, whose messages are encrypted with
+	 *         the given keys
+	 */
+	public String newEndpoint(KeyPair keyPair, byte[] authSecret) {
+		String id = Integer.toString(this.nextId.getAndIncrement());
+		this.subscribers.put(id, new Subscriber(keyPair, authSecret));
+		return getOrigin() + PATH + id;
+	}
+
+	public String getOrigin() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	public long getAnswers(int status) {
+		return this.statuses.get(status);
+	}
+
+	public long getInvalidVapid() {
+		return this.invalidVapid.get();
+	}
+
+	public long getInvalidPayloads() {
+		return this.invalidPayloads.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long arrival = System.nanoTime();
+		byte[] body;
+		try (InputStream input = exchange.getRequestBody()) {
+			body = input.readAllBytes();
+		}
+		Subscriber subscriber = this.subscribers.get(exchange.getRequestURI().getPath().substring(PATH.length()));
+		int status;
+		if (subscriber == null) {
+			status = 404;
+		} else if (!isValidVapid(exchange.getRequestHeaders().getFirst("Authorization"))) {
+			this.invalidVapid.incrementAndGet();
+			status = 401;
+		} else if (!"aes128gcm".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+				|| decrypt(subscriber, body) == null) {
+			this.invalidPayloads.incrementAndGet();
+			status = 400;
+		} else {
+			LatencyRecorder current = this.recorder;
+			if (current != null) {
+				current.record(arrival);
+			}
+			status = this.behavior.nextStatus();
+		}
+
+		if (this.behavior.latencyMillis > 0) {
+			try {
+				Thread.sleep(this.behavior.latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (status == 429) {
+			exchange.getResponseHeaders().add("Retry-After", "1");
+		}
+		this.statuses.incrementAndGet(status);
+		exchange.sendResponseHeaders(status, -1);
+		exchange.close();
+	}
+
+	// Authorization: vapid t=<jwt>, k=<public key>
+	private boolean isValidVapid(String authorization) {
+		if (authorization == null || !authorization.startsWith("vapid t=")) {
+			return false;
+		}
+		int separator = authorization.indexOf(", k=");
+		if (separator < 0) {
+			return false;
+		}
+		String token = authorization.substring("vapid t=".length(), separator);
+		String key = authorization.substring(separator + ", k=".length());
+		if (!key.equals(this.vapidPublicKey)) {
+			return false;
+		}
+		if (this.verifiedTokens.contains(token)) {
+			return true;
+		}
+		try {
+			ECPublicKey publicKey = this.cryptoService.fromUncompressedECPublicKey(key);
+			JWT.require(Algorithm.ECDSA256(publicKey, null)).withAudience(getOrigin()).build().verify(token);
+			this.verifiedTokens.add(token);
+			return true;
+		} catch (JWTVerificationException | InvalidKeySpecException e) {
+			Logger.getLogger(MockPushService.class.getName()).info("Invalid VAPID token " + e);
+			return false;
+		}
+	}
+
+	// user agent side of https://tools.ietf.org/html/rfc8291
+	private byte[] decrypt(Subscriber subscriber, byte[] message) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(message);
+			byte[] salt = new byte[16];
+			buffer.get(salt);
+			int recordSize = buffer.getInt();
+			byte[] asPublicKey = new byte[buffer.get()];
+			buffer.get(asPublicKey);
+			byte[] cipherText = new byte[buffer.remaining()];
+			buffer.get(cipherText);
+			if (recordSize < cipherText.length) {
+				return null;
+			}
+
+			KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+			keyAgreement.init((ECPrivateKey) subscriber.keyPair.getPrivate());
+			keyAgreement.doPhase(this.cryptoService
+					.fromUncompressedECPublicKey(Base64.getUrlEncoder().encodeToString(asPublicKey)), true);
+			byte[] ecdhSecret = keyAgreement.generateSecret();
+
+			byte[] prkKey = hmac(subscriber.authSecret, ecdhSecret);
+			byte[] keyInfo = ByteBuffer.allocate(14 + 65 + 65)
+					.put("WebPush: info\0".getBytes(StandardCharsets.UTF_8)).put(subscriber.publicKey)
+					.put(asPublicKey).array();
+			byte[] ikm = hmac(prkKey, keyInfo, new byte[] { 1 });
+			byte[] prk = hmac(salt, ikm);
+			byte[] cek = Arrays.copyOf(hmac(prk, "Content-Encoding: aes128gcm\0".getBytes(StandardCharsets.UTF_8),
+					new byte[] { 1 }), 16);
+			byte[] nonce = Arrays.copyOf(
+					hmac(prk, "Content-Encoding: nonce\0".getBytes(StandardCharsets.UTF_8), new byte[] { 1 }), 12);
+
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, nonce));
+			byte[] plainText = cipher.doFinal(cipherText);
+
+			int delimiter = plainText.length - 1;
+			while (delimiter >= 0 && plainText[delimiter] == 0) {
+				delimiter--;
+			}
+			if (delimiter < 0 || plainText[delimiter] != 2) {
+				return null;
+			}
+			return Arrays.copyOf(plainText, delimiter);
+		} catch (Exception e) {
+			Logger.getLogger(MockPushService.class.getName()).info("Invalid payload " + e);
+			return null;
+		}
+	}
+
+	private static byte[] hmac(byte[] key, byte[]... inputs) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		for (byte[] input : inputs) {
+			mac.update(input);
+		}
+		return mac.doFinal();
+	}
+
+	private static final class Subscriber {
+
+		private final KeyPair keyPair;
+
+		private final byte[] publicKey;
+
+		private final byte[] authSecret;
+
+		private Subscriber(KeyPair keyPair, byte[] authSecret) {
+			this.keyPair = keyPair;
+			this.publicKey = CryptoService.toUncompressedECPublicKey((ECPublicKey) keyPair.getPublic());
+			this.authSecret = authSecret;
+		}
+
+	}
+
+}
@@ -1,5 +1,10 @@
 package com.maurosalani.push_notification;
 
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
@@ -11,6 +16,24 @@ public class AppProperties {
 
 	private String serverPrivateKeyPath;
 
+	private final Delivery delivery = new Delivery();
+
+	private final KeyCache keyCache = new KeyCache();
+
+	private final EphemeralKeys ephemeralKeys = new EphemeralKeys();
+
+	private final NearCache nearCache = new NearCache();
+
+	private final Store store = new Store();
+
+	private final Retry retry = new Retry();
+
+	private final Throttle throttle = new Throttle();
+
+	private final Transport transport = new Transport();
+
+	private final Expiration expiration = new Expiration();
+
 	public String getServerPublicKeyPath() {
 		return this.serverPublicKeyPath;
 	}
@@ -27,4 +50,536 @@ public class AppProperties {
 		this.serverPrivateKeyPath = serverPrivateKeyPath;
 	}
 
+	public Delivery getDelivery() {
+		return this.delivery;
+	}
+
+	public KeyCache getKeyCache() {
+		return this.keyCache;
+	}
+
+	public EphemeralKeys getEphemeralKeys() {
+		return this.ephemeralKeys;
+	}
+
+	public NearCache getNearCache() {
+		return this.nearCache;
+	}
+
+	public Store getStore() {
+		return this.store;
+	}
+
+	public Retry getRetry() {
+		return this.retry;
+	}
+
+	public Throttle getThrottle() {
+		return this.throttle;
+	}
+
+	public Transport getTransport() {
+		return this.transport;
+	}
+
+	public Expiration getExpiration() {
+		return this.expiration;
+	}
+
+	/**
+	 * Settings of the fan-out of a message to the subscribers of a topic
+	 */
+	public static class Delivery {
+
+		public enum Executor {
+			// the thread that finds a free window prepares the delivery
+			INLINE,
+			// a pool of executorThreads threads, one for each core by default
+			PLATFORM,
+			// a virtual thread for every delivery, on Java 21 or later, that waits for
+			// the answer; at most executorThreads of them run at once
+			VIRTUAL
+		}
+
+		// requests waiting for a response from any push service
+		private int maxInFlight = 256;
+
+		// requests waiting for a response from a single push service
+		private int maxInFlightPerOrigin = 64;
+
+		// deliveries waiting for a window of their push service
+		private int maxQueued = 10_000;
+
+		// subscriptions read from the repository with a single request
+		private int readBatchSize = 500;
+
+		// broadcasts running at the same time
+		private int publisherThreads = 2;
+
+		// reports of the broadcasts kept to be read by their id
+		private int maxReports = 10_000;
+
+		private Duration reportRetention = Duration.ofHours(1);
+
+		// threads preparing the deliveries of the broadcasts
+		private Executor executor = Executor.PLATFORM;
+
+		// size of the platform pool, and deliveries running at once on virtual
+		// threads or on the pool replacing them; 0 uses one thread for each core,
+		// or maxInFlight virtual threads
+		private int executorThreads = 0;
+
+		public int getMaxInFlight() {
+			return this.maxInFlight;
+		}
+
+		public void setMaxInFlight(int maxInFlight) {
+			this.maxInFlight = maxInFlight;
+		}
+
+		public int getMaxInFlightPerOrigin() {
+			return this.maxInFlightPerOrigin;
+		}
+
+		public void setMaxInFlightPerOrigin(int maxInFlightPerOrigin) {
+			this.maxInFlightPerOrigin = maxInFlightPerOrigin;
+		}
+
+		public int getMaxQueued() {
+			return this.maxQueued;
+		}
+
+		public void setMaxQueued(int maxQueued) {
+			this.maxQueued = maxQueued;
+		}
+
+		public int getReadBatchSize() {
+			return this.readBatchSize;
+		}
+
+		public void setReadBatchSize(int readBatchSize) {
+			this.readBatchSize = readBatchSize;
+		}
+
+		public int getPublisherThreads() {
+			return this.publisherThreads;
+		}
+
+		public void setPublisherThreads(int publisherThreads) {
+			this.publisherThreads = publisherThreads;
+		}
+
+		public int getMaxReports() {
+			return this.maxReports;
+		}
+
+		public void setMaxReports(int maxReports) {
+			this.maxReports = maxReports;
+		}
+
+		public Duration getReportRetention() {
+			return this.reportRetention;
+		}
+
+		public void setReportRetention(Duration reportRetention) {
+			this.reportRetention = reportRetention;
+		}
+
+		public Executor getExecutor() {
+			return this.executor;
+		}
+
+		public void setExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		public int getExecutorThreads() {
+			return this.executorThreads;
+		}
+
+		public void setExecutorThreads(int executorThreads) {
+			this.executorThreads = executorThreads;
+		}
+
+	}
+
+	/**
+	 * Settings of the cache of the parsed keys of the subscriptions
+	 */
+	public static class KeyCache {
+
+		private int maxSize = 100_000;
+
+		private Duration ttl = Duration.ofHours(24);
+
+		public int getMaxSize() {
+			return this.maxSize;
+		}
+
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public Duration getTtl() {
+			return this.ttl;
+		}
+
+		public void setTtl(Duration ttl) {
+			this.ttl = ttl;
+		}
+
+	}
+
+	/**
+	 * Settings of the pool of key pairs generated in background for the
+	 * encryption of the messages
+	 */
+	public static class EphemeralKeys {
+
+		// 0 generates the key pairs on the encrypting thread
+		private int poolSize = 1024;
+
+		private int generatorThreads = 1;
+
+		public int getPoolSize() {
+			return this.poolSize;
+		}
+
+		public void setPoolSize(int poolSize) {
+			this.poolSize = poolSize;
+		}
+
+		public int getGeneratorThreads() {
+			return this.generatorThreads;
+		}
+
+		public void setGeneratorThreads(int generatorThreads) {
+			this.generatorThreads = generatorThreads;
+		}
+
+	}
+
+	/**
+	 * Settings of the storage of the subscriptions and topics
+	 */
+	public static class Store {
+
+		public enum Type {
+			// shared by every instance of the application
+			REDIS,
+			// lost on restart, for a single instance
+			MEMORY
+		}
+
+		private Type type = Type.REDIS;
+
+		private String redisAddress = "redis://127.0.0.1:6379";
+
+		// subscriptions of a bulk import written to the store together
+		private int importBatchSize = 1000;
+
+		public Type getType() {
+			return this.type;
+		}
+
+		public void setType(Type type) {
+			this.type = type;
+		}
+
+		public String getRedisAddress() {
+			return this.redisAddress;
+		}
+
+		public void setRedisAddress(String redisAddress) {
+			this.redisAddress = redisAddress;
+		}
+
+		public int getImportBatchSize() {
+			return this.importBatchSize;
+		}
+
+		public void setImportBatchSize(int importBatchSize) {
+			this.importBatchSize = importBatchSize;
+		}
+
+	}
+
+	/**
+	 * Settings of the retries of the deliveries that failed because of the
+	 * network, a 429 or a 5xx
+	 */
+	public static class Retry {
+
+		// including the first one
+		private int maxAttempts = 5;
+
+		// delay before the second attempt, doubled for each following one
+		private Duration baseDelay = Duration.ofSeconds(1);
+
+		private Duration maxDelay = Duration.ofMinutes(5);
+
+		// threads taking the deliveries due for another attempt from the queue
+		private int workers = 2;
+
+		// tasks a worker takes from the queue at once
+		private int batchSize = 100;
+
+		public int getMaxAttempts() {
+			return this.maxAttempts;
+		}
+
+		public void setMaxAttempts(int maxAttempts) {
+			this.maxAttempts = maxAttempts;
+		}
+
+		public Duration getBaseDelay() {
+			return this.baseDelay;
+		}
+
+		public void setBaseDelay(Duration baseDelay) {
+			this.baseDelay = baseDelay;
+		}
+
+		public Duration getMaxDelay() {
+			return this.maxDelay;
+		}
+
+		public void setMaxDelay(Duration maxDelay) {
+			this.maxDelay = maxDelay;
+		}
+
+		public int getWorkers() {
+			return this.workers;
+		}
+
+		public void setWorkers(int workers) {
+			this.workers = workers;
+		}
+
+		public int getBatchSize() {
+			return this.batchSize;
+		}
+
+		public void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+	}
+
+	/**
+	 * Settings of the rate limiter and circuit breaker of each push service
+	 * origin
+	 */
+	public static class Throttle {
+
+		// requests per second, lowered on every 429 and raised back on success
+		private double maxRate = 1000;
+
+		private double minRate = 10;
+
+		// requests that can be sent at once after a quiet period
+		private double burst = 100;
+
+		// consecutive network errors or 5xx that open the circuit
+		private int failureThreshold = 20;
+
+		// doubled every time the probe after it fails
+		private Duration openDuration = Duration.ofSeconds(30);
+
+		public double getMaxRate() {
+			return this.maxRate;
+		}
+
+		public void setMaxRate(double maxRate) {
+			this.maxRate = maxRate;
+		}
+
+		public double getMinRate() {
+			return this.minRate;
+		}
+
+		public void setMinRate(double minRate) {
+			this.minRate = minRate;
+		}
+
+		public double getBurst() {
+			return this.burst;
+		}
+
+		public void setBurst(double burst) {
+			this.burst = burst;
+		}
+
+		public int getFailureThreshold() {
+			return this.failureThreshold;
+		}
+
+		public void setFailureThreshold(int failureThreshold) {
+			this.failureThreshold = failureThreshold;
+		}
+
+		public Duration getOpenDuration() {
+			return this.openDuration;
+		}
+
+		public void setOpenDuration(Duration openDuration) {
+			this.openDuration = openDuration;
+		}
+
+	}
+
+	/**
+	 * Settings of the HTTP clients sending the requests to the push services
+	 */
+	public static class Transport {
+
+		// falls back to HTTP/1.1 when the push service does not support HTTP/2
+		private HttpClient.Version httpVersion = HttpClient.Version.HTTP_2;
+
+		private Duration connectTimeout = Duration.ofSeconds(5);
+
+		// a request without a response after this time is retried
+		private Duration requestTimeout = Duration.ofSeconds(30);
+
+		// each client keeps its own connection to the origin
+		private int clientsPerOrigin = 2;
+
+		// 0 lets every client create its own threads
+		private int executorThreads = 4;
+
+		// parsed endpoints kept in memory
+		private int endpointCacheSize = 100_000;
+
+		private Duration endpointCacheTtl = Duration.ofHours(24);
+
+		// hosts the endpoints may point to, each with its subdomains; empty allows
+		// any host
+		private List<String> pushHosts = Arrays.asList("fcm.googleapis.com", "android.googleapis.com",
+				"updates.push.services.mozilla.com", "notify.windows.com", "push.apple.com");
+
+		public HttpClient.Version getHttpVersion() {
+			return this.httpVersion;
+		}
+
+		public void setHttpVersion(HttpClient.Version httpVersion) {
+			this.httpVersion = httpVersion;
+		}
+
+		public Duration getConnectTimeout() {
+			return this.connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public Duration getRequestTimeout() {
+			return this.requestTimeout;
+		}
+
+		public void setRequestTimeout(Duration requestTimeout) {
+			this.requestTimeout = requestTimeout;
+		}
+
+		public int getClientsPerOrigin() {
+			return this.clientsPerOrigin;
+		}
+
+		public void setClientsPerOrigin(int clientsPerOrigin) {
+			this.clientsPerOrigin = clientsPerOrigin;
+		}
+
+		public int getExecutorThreads() {
+			return this.executorThreads;
+		}
+
+		public void setExecutorThreads(int executorThreads) {
+			this.executorThreads = executorThreads;
+		}
+
+		public int getEndpointCacheSize() {
+			return this.endpointCacheSize;
+		}
+
+		public void setEndpointCacheSize(int endpointCacheSize) {
+			this.endpointCacheSize = endpointCacheSize;
+		}
+
+		public Duration getEndpointCacheTtl() {
+			return this.endpointCacheTtl;
+		}
+
+		public void setEndpointCacheTtl(Duration endpointCacheTtl) {
+			this.endpointCacheTtl = endpointCacheTtl;
+		}
+
+		public List<String> getPushHosts() {
+			return this.pushHosts;
+		}
+
+		public void setPushHosts(List<String> pushHosts) {
+			this.pushHosts = pushHosts;
+		}
+
+	}
+
+	/**
+	 * Settings of the local copy of the subscriptions read from Redis
+	 */
+	public static class NearCache {
+
+		// 0 reads every subscription from Redis
+		private int maxSize = 10_000;
+
+		// bounds how long an entry can be stale if an invalidation is lost
+		private Duration ttl = Duration.ofMinutes(5);
+
+		public int getMaxSize() {
+			return this.maxSize;
+		}
+
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public Duration getTtl() {
+			return this.ttl;
+		}
+
+		public void setTtl(Duration ttl) {
+			this.ttl = ttl;
+		}
+
+	}
+
+	/**
+	 * Settings of the removal of the subscriptions past their expiration time
+	 */
+	public static class Expiration {
+
+		// 0 disables the sweeper; expired subscriptions are still skipped by the
+		// broadcasts
+		private Duration sweepInterval = Duration.ofMinutes(1);
+
+		// subscriptions removed by each request to the store
+		private int sweepBatchSize = 500;
+
+		public Duration getSweepInterval() {
+			return this.sweepInterval;
+		}
+
+		public void setSweepInterval(Duration sweepInterval) {
+			this.sweepInterval = sweepInterval;
+		}
+
+		public int getSweepBatchSize() {
+			return this.sweepBatchSize;
+		}
+
+		public void setSweepBatchSize(int sweepBatchSize) {
+			this.sweepBatchSize = sweepBatchSize;
+		}
+
+	}
+
 }
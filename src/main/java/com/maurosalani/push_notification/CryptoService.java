@@ -1,7 +1,7 @@
 package com.maurosalani.push_notification;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -16,23 +16,21 @@ import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
-import java.util.List;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.springframework.stereotype.Component;
 
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
 /**
  * This class is necessary to encrypt the payload of the push notification
  * 
@@ -41,25 +39,84 @@ import org.springframework.stereotype.Component;
 @Component
 public class CryptoService {
 
-	private final SecureRandom SECURE_RANDOM = new SecureRandom();
+	private KeyFactory keyFactory;
+
+	// more than the messages encrypted at the same time by the default executors
+	private static final int MAX_IDLE_CONTEXTS = 256;
 
-	private KeyPairGenerator keyPairGenerator;
+	private final IdlePool<EncryptionContext> encryptionContexts = new IdlePool<>(EncryptionContext::new,
+			MAX_IDLE_CONTEXTS);
 
-	private KeyFactory keyFactory;
+	private static final int SALT_LENGTH = 16;
+
+	private static final int UNCOMPRESSED_KEY_LENGTH = 65;
+
+	private static final int HMAC_LENGTH = 32;
+
+	private static final int TAG_LENGTH = 16;
+
+	// salt || rs || idlen || keyid
+	private static final int HEADER_LENGTH = SALT_LENGTH + 4 + 1 + UNCOMPRESSED_KEY_LENGTH;
+
+	private static final byte[] KEY_INFO = "WebPush: info\0".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] CEK_INFO = "Content-Encoding: aes128gcm\0".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] NONCE_INFO = "Content-Encoding: nonce\0".getBytes(StandardCharsets.UTF_8);
+
+	// null when the ephemeral keys are generated on the encrypting thread
+	private final EphemeralKeyPairPool ephemeralKeys;
 
 	public CryptoService() {
-		try {
-			this.keyPairGenerator = KeyPairGenerator.getInstance("EC");
-			this.keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+		this(null);
+	}
 
+	public CryptoService(EphemeralKeyPairPool ephemeralKeys) {
+		this.ephemeralKeys = ephemeralKeys;
+		try {
 			this.keyFactory = KeyFactory.getInstance("EC");
-		} catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+		} catch (NoSuchAlgorithmException e) {
 			Logger.getLogger(CryptoService.class.getName()).info("init crypto" + e);
 		}
 	}
 
-	public KeyPairGenerator getKeyPairGenerator() {
-		return this.keyPairGenerator;
+	static KeyPairGenerator newKeyPairGenerator() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		return newKeyPairGenerator(newSecureRandom());
+	}
+
+	static KeyPairGenerator newKeyPairGenerator(SecureRandom random)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+		keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), random);
+		return keyPairGenerator;
+	}
+
+	/**
+	 * The default generator of Linux reads from a source shared by all its
+	 * instances under a global lock, while every DRBG instance has its own state,
+	 * so threads that each own one do not wait for each other
+	 */
+	static SecureRandom newSecureRandom() throws NoSuchAlgorithmException {
+		return SecureRandom.getInstance("DRBG");
+	}
+
+	/**
+	 * @return a new P-256 key pair
+	 */
+	public KeyPair generateKeyPair() {
+		EncryptionContext context = takeContext();
+		try {
+			return context.keyPairGenerator.generateKeyPair();
+		} finally {
+			this.encryptionContexts.release(context);
+		}
+	}
+
+	/**
+	 * @return the number of encryption contexts created so far
+	 */
+	long getCreatedContexts() {
+		return this.encryptionContexts.getCreated();
 	}
 
 	public PublicKey convertX509ToECPublicKey(byte[] encodedPublicKey) throws InvalidKeySpecException {
@@ -96,24 +153,17 @@ public class CryptoService {
 		return result;
 	}
 
-	byte[] concat(byte[]... arrays) {
-		// Determine the length of the result array
-		int totalLength = 0;
-		for (byte[] array : arrays) {
-			totalLength += array.length;
-		}
-
-		// create the result array
-		byte[] result = new byte[totalLength];
-
-		// copy the source arrays into the result array
-		int currentIndex = 0;
-		for (byte[] array : arrays) {
-			System.arraycopy(array, 0, result, currentIndex, array.length);
-			currentIndex += array.length;
-		}
-
-		return result;
+	/**
+	 * Builds the plaintext of a single record: the payload followed by the padding
+	 * delimiter and by zeros up to paddingSize. The result does not depend on the
+	 * recipient, so it can be prepared once and encrypted for every subscriber.
+	 */
+	public byte[] preparePlaintext(byte[] payload, int paddingSize) {
+		int padSize = Math.max(0, paddingSize - payload.length);
+		byte[] plainText = new byte[payload.length + 1 + padSize];
+		System.arraycopy(payload, 0, plainText, 0, payload.length);
+		plainText[payload.length] = 2; // padding delimiter
+		return plainText;
 	}
 
 	// https://tools.ietf.org/html/rfc8291
@@ -121,91 +171,165 @@ public class CryptoService {
 	public byte[] encrypt(String plainTextString, String uaPublicKeyString, String authSecret, int paddingSize)
 			throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException,
 			InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException {
+		byte[] plainText = preparePlaintext(plainTextString.getBytes(StandardCharsets.UTF_8), paddingSize);
+		return encrypt(plainText, fromUncompressedECPublicKey(uaPublicKeyString),
+				Base64.getUrlDecoder().decode(authSecret));
+	}
+
+	/**
+	 * Encrypts a plaintext built by {@link #preparePlaintext(byte[], int)} for one
+	 * user agent. Only the key agreement, the key derivation and the cipher run
+	 * here; the plaintext is not modified and can be shared between threads.
+	 */
+	public byte[] encrypt(byte[] plainText, ECPublicKey uaPublicKey, byte[] authSecret)
+			throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+			NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException {
+		return encrypt(plainText, new ParsedSubscriptionKeys(null, uaPublicKey, authSecret));
+	}
+
+	public byte[] encrypt(byte[] plainText, ParsedSubscriptionKeys uaKeys)
+			throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+			NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException {
+		byte[] encrypted = new byte[encryptedLength(plainText.length)];
+		try {
+			encrypt(plainText, plainText.length, uaKeys, encrypted, 0);
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException(e);
+		}
+		return encrypted;
+	}
+
+	/**
+	 * Decodes the Base64 keys sent by the user agent
+	 */
+	public ParsedSubscriptionKeys parseSubscriptionKeys(SubscriptionKeys keys) throws InvalidKeySpecException {
+		try {
+			return new ParsedSubscriptionKeys(keys, fromUncompressedECPublicKey(keys.getP256dh()),
+					Base64.getUrlDecoder().decode(keys.getAuth()));
+		} catch (IllegalArgumentException e) {
+			throw new InvalidKeySpecException(e);
+		}
+	}
+
+	/**
+	 * @return the size of the message produced by encrypting a plaintext of the
+	 *         given length
+	 */
+	public static int encryptedLength(int plainTextLength) {
+		return HEADER_LENGTH + plainTextLength + TAG_LENGTH;
+	}
+
+	/**
+	 * Writes salt, record size, keyid and ciphertext of the message into output,
+	 * starting at offset. The JCA objects and intermediate secrets are reused
+	 * from a context taken from a pool, used by one message at a time.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int encrypt(byte[] plainText, int plainTextLength, ParsedSubscriptionKeys uaKeys, byte[] output,
+			int offset) throws InvalidKeyException, NoSuchAlgorithmException,
+			InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+		if (output.length - offset < encryptedLength(plainTextLength)) {
+			throw new ShortBufferException("Output buffer too short for the encrypted message");
+		}
+		byte[] authSecret = uaKeys.getAuthSecret();
+		if (authSecret.length > EncryptionContext.MAX_HMAC_KEY_LENGTH) {
+			throw new InvalidKeyException("Auth secret too long");
+		}
+		EncryptionContext context = takeContext();
+		try {
+			return encrypt(plainText, plainTextLength, uaKeys, authSecret, output, offset, context);
+		} finally {
+			this.encryptionContexts.release(context);
+		}
+	}
+
+	private int encrypt(byte[] plainText, int plainTextLength, ParsedSubscriptionKeys uaKeys, byte[] authSecret,
+			byte[] output, int offset, EncryptionContext context) throws InvalidKeyException,
+			InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+		Mac hmacSHA256 = context.hmacSHA256;
 
 		// ecdh_secret = ECDH(as_private, ua_public)
 		// auth_secret = <from user agent>
 		// salt = random(16)
-		KeyPair asKeyPair = this.keyPairGenerator.genKeyPair();
-		ECPublicKey asPublicKey = (ECPublicKey) asKeyPair.getPublic();
-		byte[] uncompressedASPublicKey = toUncompressedECPublicKey(asPublicKey);
+		KeyPair asKeyPair = this.ephemeralKeys != null ? this.ephemeralKeys.take()
+				: context.keyPairGenerator.genKeyPair();
+		// X509 encoding: P256_HEAD followed by the uncompressed point
+		byte[] asPublicKey = asKeyPair.getPublic().getEncoded();
 
-		ECPublicKey uaPublicKey = fromUncompressedECPublicKey(uaPublicKeyString);
+		context.keyAgreement.init(asKeyPair.getPrivate());
+		context.keyAgreement.doPhase(uaKeys.getPublicKey(), true);
+		context.keyAgreement.generateSecret(context.ecdhSecret, 0);
 
-		KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-		keyAgreement.init(asKeyPair.getPrivate());
-		keyAgreement.doPhase(uaPublicKey, true);
-
-		byte[] ecdhSecret = keyAgreement.generateSecret();
-
-		byte[] salt = new byte[16];
-		this.SECURE_RANDOM.nextBytes(salt);
+		context.random.nextBytes(context.salt);
 
 		// ## Use HKDF to combine the ECDH and authentication secrets
 		// # HKDF-Extract(salt=auth_secret, IKM=ecdh_secret)
 		// PRK_key = HMAC-SHA-256(auth_secret, ecdh_secret)
-		Mac hmacSHA256 = Mac.getInstance("HmacSHA256");
-		hmacSHA256.init(new SecretKeySpec(Base64.getUrlDecoder().decode(authSecret), "HmacSHA256"));
-		byte[] prkKey = hmacSHA256.doFinal(ecdhSecret);
+		hmacSHA256.init(context.hmacKey.set(authSecret, authSecret.length));
+		hmacSHA256.update(context.ecdhSecret);
+		hmacSHA256.doFinal(context.prkKey, 0);
 
 		// # HKDF-Expand(PRK_key, key_info, L_key=32)
 		// key_info = "WebPush: info" || 0x00 || ua_public || as_public
-
-		byte[] keyInfo = concat("WebPush: info\0".getBytes(StandardCharsets.UTF_8),
-				toUncompressedECPublicKey(uaPublicKey), uncompressedASPublicKey);
 		// IKM = HMAC-SHA-256(PRK_key, key_info || 0x01)
-		hmacSHA256.init(new SecretKeySpec(prkKey, "HmacSHA256"));
-		hmacSHA256.update(keyInfo);
+		hmacSHA256.init(context.hmacKey.set(context.prkKey, HMAC_LENGTH));
+		hmacSHA256.update(KEY_INFO);
+		hmacSHA256.update(uaKeys.getUncompressedPublicKey());
+		hmacSHA256.update(asPublicKey, P256_HEAD.length, UNCOMPRESSED_KEY_LENGTH);
 		hmacSHA256.update((byte) 1);
-		byte[] ikm = hmacSHA256.doFinal();
+		hmacSHA256.doFinal(context.ikm, 0);
 
 		// ## HKDF calculations from RFC 8188
 		// # HKDF-Extract(salt, IKM)
 		// PRK = HMAC-SHA-256(salt, IKM)
-		hmacSHA256.init(new SecretKeySpec(salt, "HmacSHA256"));
-		byte[] prk = hmacSHA256.doFinal(ikm);
+		hmacSHA256.init(context.hmacKey.set(context.salt, SALT_LENGTH));
+		hmacSHA256.update(context.ikm);
+		hmacSHA256.doFinal(context.prk, 0);
 
 		// # HKDF-Expand(PRK, cek_info, L_cek=16)
 		// cek_info = "Content-Encoding: aes128gcm" || 0x00
-		byte[] cekInfo = "Content-Encoding: aes128gcm\0".getBytes(StandardCharsets.UTF_8);
 		// CEK = HMAC-SHA-256(PRK, cek_info || 0x01)[0..15]
-		hmacSHA256.init(new SecretKeySpec(prk, "HmacSHA256"));
-		hmacSHA256.update(cekInfo);
+		hmacSHA256.init(context.hmacKey.set(context.prk, HMAC_LENGTH));
+		hmacSHA256.update(CEK_INFO);
 		hmacSHA256.update((byte) 1);
-		byte[] cek = hmacSHA256.doFinal();
-		cek = Arrays.copyOfRange(cek, 0, 16);
+		hmacSHA256.doFinal(context.okm, 0);
+		context.aesKey.set(context.okm, 16);
 
 		// # HKDF-Expand(PRK, nonce_info, L_nonce=12)
 		// nonce_info = "Content-Encoding: nonce" || 0x00
-		byte[] nonceInfo = "Content-Encoding: nonce\0".getBytes(StandardCharsets.UTF_8);
 		// NONCE = HMAC-SHA-256(PRK, nonce_info || 0x01)[0..11]
-		hmacSHA256.init(new SecretKeySpec(prk, "HmacSHA256"));
-		hmacSHA256.update(nonceInfo);
+		// (doFinal left the mac initialized with PRK)
+		hmacSHA256.update(NONCE_INFO);
 		hmacSHA256.update((byte) 1);
-		byte[] nonce = hmacSHA256.doFinal();
-		nonce = Arrays.copyOfRange(nonce, 0, 12);
-
-		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, nonce));
-
-		List<byte[]> inputs = new ArrayList<>();
-		byte[] plainTextBytes = plainTextString.getBytes(StandardCharsets.UTF_8);
-		inputs.add(plainTextBytes);
-		inputs.add(new byte[] { 2 }); // padding delimiter
+		hmacSHA256.doFinal(context.okm, 0);
+
+		context.cipher.init(Cipher.ENCRYPT_MODE, context.aesKey, new GCMParameterSpec(128, context.okm, 0, 12));
+
+		// header: salt || rs || idlen || keyid, followed by the single record
+		int position = offset;
+		System.arraycopy(context.salt, 0, output, position, SALT_LENGTH);
+		position += SALT_LENGTH;
+		int recordSize = plainTextLength + TAG_LENGTH;
+		output[position++] = (byte) (recordSize >>> 24);
+		output[position++] = (byte) (recordSize >>> 16);
+		output[position++] = (byte) (recordSize >>> 8);
+		output[position++] = (byte) recordSize;
+		output[position++] = (byte) UNCOMPRESSED_KEY_LENGTH;
+		System.arraycopy(asPublicKey, P256_HEAD.length, output, position, UNCOMPRESSED_KEY_LENGTH);
+		position += UNCOMPRESSED_KEY_LENGTH;
+
+		position += context.cipher.doFinal(plainText, 0, plainTextLength, output, position);
+		return position - offset;
+	}
 
-		int padSize = Math.max(0, paddingSize - plainTextBytes.length);
-		if (padSize > 0) {
-			inputs.add(new byte[padSize]);
+	private EncryptionContext takeContext() {
+		try {
+			return this.encryptionContexts.take();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
 		}
-
-		byte[] encrypted = cipher.doFinal(concat(inputs.toArray(new byte[0][])));
-
-		ByteBuffer encryptedArrayLength = ByteBuffer.allocate(4);
-		encryptedArrayLength.putInt(encrypted.length);
-
-		byte[] header = concat(salt, encryptedArrayLength.array(), new byte[] { (byte) uncompressedASPublicKey.length },
-				uncompressedASPublicKey);
-
-		return concat(header, encrypted);
 	}
 
 }
@@ -0,0 +1,105 @@
+package com.maurosalani.push_notification;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * JCA objects and scratch buffers used to encrypt one push message. An
+ * instance is used by one message at a time and kept in a pool for the next
+ * ones, so the provider lookups run once per instance and the encrypting
+ * threads share no lock, not even the one of a random generator.
+ */
+class EncryptionContext {
+
+	final SecureRandom random;
+
+	final KeyPairGenerator keyPairGenerator;
+
+	final KeyAgreement keyAgreement;
+
+	final Mac hmacSHA256;
+
+	final Cipher cipher;
+
+	// output of ECDH on P-256
+	final byte[] ecdhSecret = new byte[32];
+
+	// output of a single HMAC-SHA-256, reused by every HKDF step
+	final byte[] prkKey = new byte[32];
+
+	final byte[] ikm = new byte[32];
+
+	final byte[] prk = new byte[32];
+
+	final byte[] okm = new byte[32];
+
+	final byte[] salt = new byte[16];
+
+	// keys longer than the block size of SHA-256 would be hashed first
+	static final int MAX_HMAC_KEY_LENGTH = 64;
+
+	final ScratchKey hmacKey = new ScratchKey("HmacSHA256", MAX_HMAC_KEY_LENGTH);
+
+	final ScratchKey aesKey = new ScratchKey("AES", 16);
+
+	EncryptionContext() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+		this.random = CryptoService.newSecureRandom();
+		this.keyPairGenerator = CryptoService.newKeyPairGenerator(this.random);
+		this.keyAgreement = KeyAgreement.getInstance("ECDH");
+		this.hmacSHA256 = Mac.getInstance("HmacSHA256");
+		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	/**
+	 * A secret key whose material is overwritten for each use instead of
+	 * allocating a new SecretKeySpec. Providers may wipe the array returned by
+	 * {@link #getEncoded()}, so a copy is returned.
+	 */
+	static final class ScratchKey implements SecretKey {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String algorithm;
+
+		private final byte[] material;
+
+		private int length;
+
+		ScratchKey(String algorithm, int capacity) {
+			this.algorithm = algorithm;
+			this.material = new byte[capacity];
+		}
+
+		ScratchKey set(byte[] source, int length) {
+			System.arraycopy(source, 0, this.material, 0, length);
+			this.length = length;
+			return this;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return this.algorithm;
+		}
+
+		@Override
+		public String getFormat() {
+			return "RAW";
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			return Arrays.copyOf(this.material, this.length);
+		}
+
+	}
+
+}
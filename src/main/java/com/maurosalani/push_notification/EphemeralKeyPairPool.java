@@ -0,0 +1,118 @@
+package com.maurosalani.push_notification;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of fresh P-256 key pairs for the encryption of push messages.
+ * Background threads keep the pool full, so encrypting threads only take a
+ * pair instead of generating it. Every pair is handed out once. When the pool
+ * is empty the pair is generated on the calling thread and a stall is counted.
+ */
+public class EphemeralKeyPairPool {
+
+	private final BlockingQueue<KeyPair> pool;
+
+	private final Thread[] generators;
+
+	// generators of the callers that found the pool empty
+	private final IdlePool<KeyPairGenerator> inlineGenerators;
+
+	private final LongAdder taken = new LongAdder();
+
+	private final LongAdder stalls = new LongAdder();
+
+	public EphemeralKeyPairPool(int capacity, int generatorThreads) {
+		this.pool = new ArrayBlockingQueue<>(capacity);
+		this.inlineGenerators = new IdlePool<>(CryptoService::newKeyPairGenerator,
+				Runtime.getRuntime().availableProcessors());
+		this.generators = new Thread[generatorThreads];
+		for (int i = 0; i < generatorThreads; i++) {
+			this.generators[i] = new Thread(this::fill, "ephemeral-key-generator-" + i);
+			this.generators[i].setDaemon(true);
+			this.generators[i].start();
+		}
+	}
+
+	public KeyPair take() {
+		this.taken.increment();
+		KeyPair keyPair = this.pool.poll();
+		if (keyPair == null) {
+			this.stalls.increment();
+			keyPair = generateInline();
+		}
+		return keyPair;
+	}
+
+	/**
+	 * @return the number of key pairs ready to be taken
+	 */
+	public int getDepth() {
+		return this.pool.size();
+	}
+
+	public int getCapacity() {
+		return this.pool.size() + this.pool.remainingCapacity();
+	}
+
+	public long getTaken() {
+		return this.taken.sum();
+	}
+
+	/**
+	 * @return how many times a key pair had to be generated by the caller because
+	 *         the pool was empty
+	 */
+	public long getStalls() {
+		return this.stalls.sum();
+	}
+
+	public void shutdown() {
+		for (Thread generator : this.generators) {
+			generator.interrupt();
+		}
+	}
+
+	private void fill() {
+		try {
+			KeyPairGenerator keyPairGenerator = CryptoService.newKeyPairGenerator();
+			while (!Thread.currentThread().isInterrupted()) {
+				this.pool.put(keyPairGenerator.generateKeyPair());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+			Logger.getLogger(EphemeralKeyPairPool.class.getName()).info("init key generator" + e);
+		}
+	}
+
+	private KeyPair generateInline() {
+		KeyPairGenerator keyPairGenerator;
+		try {
+			keyPairGenerator = this.inlineGenerators.take();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		try {
+			return keyPairGenerator.generateKeyPair();
+		} finally {
+			this.inlineGenerators.release(keyPairGenerator);
+		}
+	}
+
+	/**
+	 * @return the number of generators created for the callers that found the
+	 *         pool empty
+	 */
+	long getInlineGenerators() {
+		return this.inlineGenerators.getCreated();
+	}
+
+}
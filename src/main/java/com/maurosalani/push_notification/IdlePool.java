@@ -0,0 +1,68 @@
+package com.maurosalani.push_notification;
+
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Objects that are costly to create, kept between uses. Thread locals would
+ * hold one for every thread, and a virtual thread runs a single delivery, so
+ * its object would never be reused. At most maxIdle objects are kept; the
+ * others are dropped when they are released.
+ */
+final class IdlePool<T> {
+
+	@FunctionalInterface
+	interface Factory<T> {
+
+		T create() throws GeneralSecurityException;
+
+	}
+
+	private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private final LongAdder created = new LongAdder();
+
+	private final Factory<T> factory;
+
+	private final int maxIdle;
+
+	IdlePool(Factory<T> factory, int maxIdle) {
+		this.factory = factory;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return an idle object, or a new one if there is none; it has to be
+	 *         released once it is no longer used
+	 */
+	T take() throws GeneralSecurityException {
+		T object = this.idle.poll();
+		if (object != null) {
+			this.idleCount.decrementAndGet();
+			return object;
+		}
+		this.created.increment();
+		return this.factory.create();
+	}
+
+	void release(T object) {
+		if (this.idleCount.incrementAndGet() <= this.maxIdle) {
+			this.idle.add(object);
+		} else {
+			this.idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of objects created so far
+	 */
+	long getCreated() {
+		return this.created.sum();
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.maurosalani.push_notification;
+
+import java.security.interfaces.ECPublicKey;
+
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+/**
+ * Keys of a subscription decoded from their Base64 form, ready to be used for
+ * the encryption of a message
+ */
+public class ParsedSubscriptionKeys {
+
+	private final SubscriptionKeys source;
+
+	private final ECPublicKey publicKey;
+
+	private final byte[] uncompressedPublicKey;
+
+	private final byte[] authSecret;
+
+	public ParsedSubscriptionKeys(SubscriptionKeys source, ECPublicKey publicKey, byte[] authSecret) {
+		this.source = source;
+		this.publicKey = publicKey;
+		this.uncompressedPublicKey = CryptoService.toUncompressedECPublicKey(publicKey);
+		this.authSecret = authSecret;
+	}
+
+	/**
+	 * @return the keys these were decoded from
+	 */
+	public SubscriptionKeys getSource() {
+		return this.source;
+	}
+
+	public ECPublicKey getPublicKey() {
+		return this.publicKey;
+	}
+
+	// starts with (byte)4
+	byte[] getUncompressedPublicKey() {
+		return this.uncompressedPublicKey;
+	}
+
+	byte[] getAuthSecret() {
+		return this.authSecret;
+	}
+
+}
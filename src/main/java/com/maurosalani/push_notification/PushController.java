@@ -1,17 +1,28 @@
 package com.maurosalani.push_notification;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.logging.Logger;
 
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.maurosalani.push_notification.delivery.BroadcastReport;
+import com.maurosalani.push_notification.dto.BroadcastStatus;
+import com.maurosalani.push_notification.dto.ImportReport;
 import com.maurosalani.push_notification.dto.Subscription;
 import com.maurosalani.push_notification.dto.SubscriptionEndpoint;
+import com.maurosalani.push_notification.dto.TopicMessage;
+import com.maurosalani.push_notification.dto.TopicSubscription;
 
 @RestController
 public class PushController {
@@ -20,9 +31,9 @@ public class PushController {
 
 	private final SubscriptionsHandler subscriptionsHandler;
 
-	public PushController(ServerKeys serverKeys) {
+	public PushController(ServerKeys serverKeys, AppProperties appProperties) {
 		this.serverKeys = serverKeys;
-		subscriptionsHandler = SubscriptionsHandler.getInstance(serverKeys);
+		subscriptionsHandler = SubscriptionsHandler.getInstance(serverKeys, appProperties);
 		Logger.getLogger(PushController.class.getName()).info("PushController has correctly been created");
 	}
 
@@ -43,13 +54,30 @@ public class PushController {
 		if (!isSubscribed) {
 			Logger.getLogger(PushController.class.getName())
 					.info("Username: " + subscription.getUsername() + " subscribed: " + subscription.getEndpoint());
-			subscriptionsHandler.subscribeUser(subscription);
+			try {
+				subscriptionsHandler.subscribeUser(subscription);
+			} catch (IllegalArgumentException e) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+			}
 		} else {
 			Logger.getLogger(PushController.class.getName())
 					.info(isSubscribed + " = IsSubscribed: " + subscription.getEndpoint());
 		}
 	}
 
+	/**
+	 * Imports subscriptions and their topics, one JSON object per line. The body
+	 * is read while it arrives; the lines that are not imported are listed in the
+	 * report.
+	 */
+	@PostMapping(path = "/subscriptions/bulk", consumes = "application/x-ndjson")
+	public ImportReport importSubscriptions(InputStream body) throws IOException {
+		ImportReport report = subscriptionsHandler.importSubscriptions(body);
+		Logger.getLogger(PushController.class.getName())
+				.info("Imported " + report.getImported() + " subscriptions, " + report.getFailed() + " failed");
+		return report;
+	}
+
 	@PostMapping("/unsubscribe")
 	public void unsubscribe(@RequestBody SubscriptionEndpoint subscription) {
 		Logger.getLogger(PushController.class.getName()).info("Unsubscription: " + subscription.getEndpoint());
@@ -62,4 +90,45 @@ public class PushController {
 		return isSubscribed;
 	}
 
+	@PostMapping("/subscribeToTopic")
+	@ResponseStatus(HttpStatus.CREATED)
+	public void subscribeToTopic(@RequestBody TopicSubscription subscription) {
+		if (subscription.getUsername() == null || subscription.getTopic() == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "username and topic are required");
+		}
+		Logger.getLogger(PushController.class.getName())
+				.info("Username: " + subscription.getUsername() + " subscribed to topic: " + subscription.getTopic());
+		subscriptionsHandler.subscribeToTopic(subscription.getUsername(), subscription.getTopic());
+	}
+
+	/**
+	 * Starts the broadcast and answers before it is delivered; its progress is
+	 * read from the location returned
+	 */
+	@PostMapping("/publish")
+	public ResponseEntity<BroadcastStatus> publish(@RequestBody TopicMessage message) {
+		if (message.getTopic() == null || message.getMessage() == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "topic and message are required");
+		}
+		BroadcastReport report = subscriptionsHandler.publishMessageForTopic(message.getMessage(), message.getTopic());
+		Logger.getLogger(PushController.class.getName())
+				.info("Broadcast " + report.getBroadcastId() + " started for topic: " + message.getTopic());
+		return ResponseEntity.accepted().location(URI.create("/broadcasts/" + report.getBroadcastId()))
+				.body(BroadcastStatus.of(report));
+	}
+
+	/**
+	 * The status is kept by the instance that published the broadcast: behind a
+	 * load balancer it is found only there, and its retries count only those
+	 * that instance took from the shared queue
+	 */
+	@GetMapping("/broadcasts/{broadcastId}")
+	public BroadcastStatus broadcast(@PathVariable String broadcastId) {
+		BroadcastReport report = subscriptionsHandler.getBroadcast(broadcastId);
+		if (report == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown broadcast " + broadcastId);
+		}
+		return BroadcastStatus.of(report);
+	}
+
 }
@@ -0,0 +1,59 @@
+package com.maurosalani.push_notification;
+
+import com.maurosalani.push_notification.delivery.DeliveryQueue;
+import com.maurosalani.push_notification.repository.NearCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Publishes the state of the caches, pools and queues of a
+ * {@link SubscriptionsHandler}
+ */
+public class PushMetrics implements MeterBinder {
+
+	private final SubscriptionsHandler handler;
+
+	public PushMetrics(SubscriptionsHandler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("push.requests.in.flight", this.handler, SubscriptionsHandler::getInFlight)
+				.description("Requests waiting for a response from any push service").register(registry);
+
+		SubscriberKeyCache keyCache = this.handler.getKeyCache();
+		FunctionCounter.builder("push.key.cache.hits", keyCache, SubscriberKeyCache::getHits)
+				.description("Subscription keys found already parsed").register(registry);
+		FunctionCounter.builder("push.key.cache.misses", keyCache, SubscriberKeyCache::getMisses)
+				.description("Subscription keys parsed while sending").register(registry);
+
+		EphemeralKeyPairPool ephemeralKeys = this.handler.getEphemeralKeyPairPool();
+		if (ephemeralKeys != null) {
+			Gauge.builder("push.ephemeral.keys.depth", ephemeralKeys, EphemeralKeyPairPool::getDepth)
+					.description("Key pairs ready to be taken").register(registry);
+			FunctionCounter.builder("push.ephemeral.keys.stalls", ephemeralKeys, EphemeralKeyPairPool::getStalls)
+					.description("Key pairs generated while encrypting because the pool was empty")
+					.register(registry);
+		}
+
+		NearCache nearCache = this.handler.getNearCache();
+		if (nearCache != null) {
+			FunctionCounter.builder("push.near.cache.hits", nearCache, NearCache::getHits)
+					.description("Subscriptions read from the local copy").register(registry);
+			FunctionCounter.builder("push.near.cache.misses", nearCache, NearCache::getMisses)
+					.description("Subscriptions read from Redis").register(registry);
+			Gauge.builder("push.near.cache.size", nearCache, NearCache::size).register(registry);
+		}
+
+		DeliveryQueue deliveryQueue = this.handler.getDeliveryQueue();
+		Gauge.builder("push.delivery.queue.size", deliveryQueue, DeliveryQueue::size)
+				.description("Deliveries waiting to be retried").register(registry);
+		Gauge.builder("push.delivery.dead.letters", deliveryQueue, DeliveryQueue::getDeadLetterCount)
+				.description("Deliveries that exhausted their attempts").register(registry);
+	}
+
+}
@@ -73,7 +73,7 @@ public class ServerKeys {
 			}
 		} else {
 			try {
-				KeyPair pair = this.cryptoService.getKeyPairGenerator().generateKeyPair();
+				KeyPair pair = this.cryptoService.generateKeyPair();
 				this.publicKey = (ECPublicKey) pair.getPublic();
 				this.privateKey = (ECPrivateKey) pair.getPrivate();
 				Files.write(appServerPublicKeyFile, this.publicKey.getEncoded());
@@ -0,0 +1,57 @@
+package com.maurosalani.push_notification;
+
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+
+import com.maurosalani.push_notification.cache.ExpiringLruCache;
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Keeps the decoded keys of the subscriptions, keyed by endpoint, so that a
+ * broadcast does not decode and parse the same keys again for every message
+ */
+public class SubscriberKeyCache {
+
+	private final CryptoService cryptoService;
+
+	private final ExpiringLruCache<String, ParsedSubscriptionKeys> cache;
+
+	public SubscriberKeyCache(CryptoService cryptoService, int maxSize, Duration ttl) {
+		this.cryptoService = cryptoService;
+		this.cache = new ExpiringLruCache<>(maxSize, ttl);
+	}
+
+	/**
+	 * Parses the keys of a subscription and caches them
+	 */
+	public ParsedSubscriptionKeys put(Subscription subscription) throws InvalidKeySpecException {
+		ParsedSubscriptionKeys keys = this.cryptoService.parseSubscriptionKeys(subscription.getKeys());
+		this.cache.put(subscription.getEndpoint(), keys);
+		return keys;
+	}
+
+	/**
+	 * @return the parsed keys of the subscription, parsing them if they are not
+	 *         cached or if the subscription changed its keys
+	 */
+	public ParsedSubscriptionKeys get(Subscription subscription) throws InvalidKeySpecException {
+		ParsedSubscriptionKeys keys = this.cache.get(subscription.getEndpoint());
+		if (keys != null && keys.getSource().equals(subscription.getKeys())) {
+			return keys;
+		}
+		return put(subscription);
+	}
+
+	public void invalidate(String endpoint) {
+		this.cache.invalidate(endpoint);
+	}
+
+	public long getHits() {
+		return this.cache.getHits();
+	}
+
+	public long getMisses() {
+		return this.cache.getMisses();
+	}
+
+}
@@ -0,0 +1,318 @@
+package com.maurosalani.push_notification;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.maurosalani.push_notification.delivery.PushEndpoint;
+import com.maurosalani.push_notification.delivery.PushServices;
+import com.maurosalani.push_notification.dto.ImportReport;
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+import com.maurosalani.push_notification.repository.SubscriptionStore;
+
+/**
+ * Imports subscriptions from newline delimited JSON, one subscription with its
+ * topics on each line:
+ *
+ * <pre>
+ * {"username":"u","endpoint":"https://...","expirationTime":null,"keys":{"p256dh":"...","auth":"..."},"topics":["t"]}
+ * </pre>
+ *
+ * The input is read one line at a time and every line is read token by token
+ * with the streaming parser of Jackson, so the memory used does not grow with
+ * the size of the import. The keys are decoded as they are for the encryption,
+ * so a subscription that could not be delivered to is not stored. The valid
+ * lines are written to the store in batches,
+ * each one while the next is being parsed; the invalid ones are skipped and
+ * reported.
+ */
+public class SubscriptionImporter {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final int AUTH_SECRET_LENGTH = 16;
+
+	private final SubscriptionStore store;
+
+	private final int batchSize;
+
+	private final PushServices pushServices;
+
+	private final CryptoService cryptoService;
+
+	public SubscriptionImporter(SubscriptionStore store, int batchSize) {
+		this(store, batchSize, PushServices.any(), new CryptoService());
+	}
+
+	/**
+	 * @param pushServices  the push services the endpoints may point to
+	 * @param cryptoService decodes the keys of the subscriptions
+	 */
+	public SubscriptionImporter(SubscriptionStore store, int batchSize, PushServices pushServices,
+			CryptoService cryptoService) {
+		this.store = store;
+		this.batchSize = batchSize;
+		this.pushServices = pushServices;
+		this.cryptoService = cryptoService;
+	}
+
+	public ImportReport importFrom(InputStream input) throws IOException {
+		ImportReport report = new ImportReport();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		Batch batch = new Batch();
+		Batch writing = null;
+		long lineNumber = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			List<String> topics = new ArrayList<>();
+			try {
+				Subscription subscription = parse(line, topics);
+				this.pushServices.check(subscription.getEndpoint());
+				checkKeys(subscription.getKeys());
+				batch.add(lineNumber, subscription, topics);
+			} catch (JsonProcessingException e) {
+				report.addError(lineNumber, e.getOriginalMessage());
+				continue;
+			} catch (IllegalArgumentException e) {
+				report.addError(lineNumber, e.getMessage());
+				continue;
+			}
+			if (batch.size() == this.batchSize) {
+				// at most one batch is written at a time
+				await(writing, report);
+				writing = batch.write(this.store);
+				batch = new Batch();
+			}
+		}
+		await(writing, report);
+		if (batch.size() > 0) {
+			await(batch.write(this.store), report);
+		}
+		return report;
+	}
+
+	private static void await(Batch batch, ImportReport report) {
+		if (batch == null) {
+			return;
+		}
+		try {
+			batch.written.join();
+			report.addImported(batch.size());
+		} catch (CompletionException e) {
+			Logger.getLogger(SubscriptionImporter.class.getName()).info("import batch " + e.getCause());
+			for (long line : batch.lines) {
+				report.addError(line, "not stored: " + e.getCause().getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @param topics filled with the topics of the line
+	 */
+	static Subscription parse(String line, List<String> topics) throws IOException {
+		String username = null;
+		String endpoint = null;
+		Long expirationTime = null;
+		SubscriptionKeys keys = null;
+		try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "expected a subscription object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				switch (field) {
+				case "username":
+					username = text(parser, field);
+					break;
+				case "endpoint":
+					endpoint = text(parser, field);
+					break;
+				case "expirationTime":
+					expirationTime = number(parser, field);
+					break;
+				case "keys":
+					keys = keys(parser);
+					break;
+				case "topics":
+					topics(parser, topics);
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+			if (parser.nextToken() != null) {
+				throw new JsonParseException(parser, "unexpected content after the subscription");
+			}
+		}
+		if (username == null || username.isEmpty()) {
+			throw new IllegalArgumentException("username is required");
+		}
+		if (endpoint == null) {
+			throw new IllegalArgumentException("endpoint is required");
+		}
+		try {
+			PushEndpoint.parse(endpoint);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("invalid endpoint: " + e.getMessage());
+		}
+		if (keys == null || keys.getP256dh() == null || keys.getAuth() == null) {
+			throw new IllegalArgumentException("keys.p256dh and keys.auth are required");
+		}
+		return new Subscription(username, endpoint, expirationTime, keys);
+	}
+
+	/**
+	 * Decodes p256dh and auth from base64url as the encryption does, p256dh as an
+	 * uncompressed point of P-256 and auth as a 16 bytes secret
+	 */
+	private void checkKeys(SubscriptionKeys keys) {
+		ParsedSubscriptionKeys parsed;
+		try {
+			parsed = this.cryptoService.parseSubscriptionKeys(keys);
+		} catch (InvalidKeySpecException e) {
+			throw new IllegalArgumentException("invalid keys: " + e.getMessage());
+		}
+		if (parsed.getAuthSecret().length != AUTH_SECRET_LENGTH) {
+			throw new IllegalArgumentException("keys.auth must be " + AUTH_SECRET_LENGTH + " bytes");
+		}
+		if (!onCurve(parsed.getPublicKey())) {
+			throw new IllegalArgumentException("keys.p256dh is not a point of P-256");
+		}
+	}
+
+	private static boolean onCurve(ECPublicKey key) {
+		EllipticCurve curve = key.getParams().getCurve();
+		BigInteger p = ((ECFieldFp) curve.getField()).getP();
+		ECPoint w = key.getW();
+		// y^2 = x^3 + ax + b (mod p)
+		BigInteger left = w.getAffineY().modPow(BigInteger.TWO, p);
+		BigInteger right = w.getAffineX().pow(3).add(curve.getA().multiply(w.getAffineX())).add(curve.getB()).mod(p);
+		return left.equals(right);
+	}
+
+	private static SubscriptionKeys keys(JsonParser parser) throws IOException {
+		if (parser.currentToken() == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (parser.currentToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "keys must be an object");
+		}
+		String p256dh = null;
+		String auth = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if (field.equals("p256dh")) {
+				p256dh = text(parser, field);
+			} else if (field.equals("auth")) {
+				auth = text(parser, field);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return new SubscriptionKeys(p256dh, auth);
+	}
+
+	private static void topics(JsonParser parser, List<String> topics) throws IOException {
+		if (parser.currentToken() == JsonToken.VALUE_NULL) {
+			return;
+		}
+		if (parser.currentToken() != JsonToken.START_ARRAY) {
+			throw new JsonParseException(parser, "topics must be an array");
+		}
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			String topic = text(parser, "topic");
+			if (topic == null || topic.isEmpty()) {
+				throw new JsonParseException(parser, "topics must not be empty");
+			}
+			topics.add(topic);
+		}
+	}
+
+	private static String text(JsonParser parser, String field) throws IOException {
+		switch (parser.currentToken()) {
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_NULL:
+			return null;
+		default:
+			throw new JsonParseException(parser, field + " must be a string");
+		}
+	}
+
+	private static Long number(JsonParser parser, String field) throws IOException {
+		switch (parser.currentToken()) {
+		case VALUE_NUMBER_INT:
+			return parser.getLongValue();
+		case VALUE_NULL:
+			return null;
+		default:
+			throw new JsonParseException(parser, field + " must be an integer");
+		}
+	}
+
+	/**
+	 * Valid lines waiting to be written together
+	 */
+	private static final class Batch {
+
+		private final List<Long> lines = new ArrayList<>();
+
+		private final List<Subscription> subscriptions = new ArrayList<>();
+
+		private final Map<String, List<String>> topicsByUsername = new HashMap<>();
+
+		private CompletableFuture<Void> written;
+
+		void add(long line, Subscription subscription, List<String> topics) {
+			this.lines.add(line);
+			this.subscriptions.add(subscription);
+			if (!topics.isEmpty()) {
+				this.topicsByUsername.computeIfAbsent(subscription.getUsername(), username -> new ArrayList<>())
+						.addAll(topics);
+			}
+		}
+
+		int size() {
+			return this.lines.size();
+		}
+
+		Batch write(SubscriptionStore store) {
+			try {
+				this.written = store.registerUsers(this.subscriptions, this.topicsByUsername);
+			} catch (RuntimeException e) {
+				this.written = CompletableFuture.failedFuture(e);
+			}
+			return this;
+		}
+
+	}
+
+}
@@ -1,44 +1,66 @@
 package com.maurosalani.push_notification;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
-import java.net.http.HttpClient;
+import java.io.InputStream;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
-import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.maurosalani.push_notification.delivery.BroadcastReport;
+import com.maurosalani.push_notification.delivery.BroadcastTracker;
+import com.maurosalani.push_notification.delivery.DeliveryExecutor;
+import com.maurosalani.push_notification.delivery.DeliveryMetrics;
+import com.maurosalani.push_notification.delivery.DeliveryQueue;
+import com.maurosalani.push_notification.delivery.DeliveryWorkers;
+import com.maurosalani.push_notification.delivery.FanOutEngine;
+import com.maurosalani.push_notification.delivery.InMemoryDeliveryQueue;
+import com.maurosalani.push_notification.delivery.OriginThrottle;
+import com.maurosalani.push_notification.delivery.PushEndpoint;
+import com.maurosalani.push_notification.delivery.PushServices;
+import com.maurosalani.push_notification.delivery.PushTransport;
+import com.maurosalani.push_notification.delivery.RedisDeliveryQueue;
+import com.maurosalani.push_notification.delivery.RetryPolicy;
+import com.maurosalani.push_notification.dto.ImportReport;
 import com.maurosalani.push_notification.dto.PushMessage;
 import com.maurosalani.push_notification.dto.Subscription;
 import com.maurosalani.push_notification.dto.SubscriptionEndpoint;
+import com.maurosalani.push_notification.repository.ExpirationSweeper;
+import com.maurosalani.push_notification.repository.InMemorySubscriptionStore;
+import com.maurosalani.push_notification.repository.NearCache;
 import com.maurosalani.push_notification.repository.RedisRepository;
+import com.maurosalani.push_notification.repository.SubscriptionStore;
+
+import io.micrometer.core.instrument.Metrics;
 
 public class SubscriptionsHandler {
 
 	private final CryptoService cryptoService;
 
-	private final HttpClient httpClient;
+	private final EphemeralKeyPairPool ephemeralKeyPairPool;
+
+	private final PushTransport transport;
+
+	private final PushServices pushServices;
 
-	private final Algorithm jwtAlgorithm;
+	private final VapidTokenCache vapidTokens;
 
 	private final ServerKeys serverKeys;
 
@@ -46,31 +68,178 @@ public class SubscriptionsHandler {
 
 	private static SubscriptionsHandler subscriptionsHandlerInstance = null;
 
-	private final RedisRepository repository;
-
-	private SubscriptionsHandler(ServerKeys serverKeys) {
-		cryptoService = new CryptoService();
-		this.httpClient = HttpClient.newHttpClient();
+	private final SubscriptionStore repository;
+
+	private final FanOutEngine fanOutEngine;
+
+	private final SubscriberKeyCache keyCache;
+
+	private final int readBatchSize;
+
+	private final int importBatchSize;
+
+	private final DeliveryQueue deliveryQueue;
+
+	private final DeliveryWorkers deliveryWorkers;
+
+	private final BroadcastTracker broadcasts;
+
+	private final ExecutorService publishers;
+
+	private final DeliveryMetrics metrics;
+
+	private final ExpirationSweeper expirationSweeper; // null when disabled
+
+	private SubscriptionsHandler(ServerKeys serverKeys, AppProperties appProperties) {
+		AppProperties.EphemeralKeys ephemeralKeys = appProperties.getEphemeralKeys();
+		this.ephemeralKeyPairPool = ephemeralKeys.getPoolSize() > 0
+				? new EphemeralKeyPairPool(ephemeralKeys.getPoolSize(), ephemeralKeys.getGeneratorThreads())
+				: null;
+		cryptoService = new CryptoService(this.ephemeralKeyPairPool);
+		// Spring Boot adds its registries, Prometheus included, to the global one
+		this.metrics = new DeliveryMetrics(Metrics.globalRegistry);
+		AppProperties.Transport transport = appProperties.getTransport();
+		this.pushServices = new PushServices(transport.getPushHosts());
+		this.transport = new PushTransport(transport.getHttpVersion(), transport.getConnectTimeout(),
+				transport.getRequestTimeout(), transport.getClientsPerOrigin(), transport.getExecutorThreads(),
+				transport.getEndpointCacheSize(), transport.getEndpointCacheTtl(), this.pushServices);
+		this.repository = createStore(appProperties);
+		this.deliveryQueue = this.repository instanceof RedisRepository
+				? new RedisDeliveryQueue(((RedisRepository) this.repository).getRedissonClient())
+				: new InMemoryDeliveryQueue();
+		AppProperties.Retry retry = appProperties.getRetry();
+		AppProperties.Throttle throttle = appProperties.getThrottle();
+		this.fanOutEngine = new FanOutEngine(this.transport, appProperties.getDelivery().getMaxInFlight(),
+				appProperties.getDelivery().getMaxInFlightPerOrigin(), appProperties.getDelivery().getMaxQueued(),
+				this::buildPushRequest, this.deliveryQueue,
+				new RetryPolicy(retry.getMaxAttempts(), retry.getBaseDelay(), retry.getMaxDelay()),
+				origin -> this.metrics.bind(new OriginThrottle(origin, throttle.getMaxRate(), throttle.getMinRate(),
+						throttle.getBurst(), throttle.getFailureThreshold(), throttle.getOpenDuration().toMillis())),
+				createDeliveryExecutor(appProperties.getDelivery()), this.metrics);
+		this.broadcasts = new BroadcastTracker(appProperties.getDelivery().getMaxReports(),
+				appProperties.getDelivery().getReportRetention());
+		this.deliveryWorkers = new DeliveryWorkers(this.deliveryQueue, this.fanOutEngine, this.broadcasts,
+				this::removeGoneEndpoint, retry.getWorkers(), retry.getBatchSize());
+		this.publishers = Executors.newFixedThreadPool(appProperties.getDelivery().getPublisherThreads(),
+				runnable -> {
+					Thread publisher = new Thread(runnable, "broadcast-publisher");
+					publisher.setDaemon(true);
+					return publisher;
+				});
+		this.keyCache = new SubscriberKeyCache(cryptoService, appProperties.getKeyCache().getMaxSize(),
+				appProperties.getKeyCache().getTtl());
+		this.readBatchSize = appProperties.getDelivery().getReadBatchSize();
+		this.importBatchSize = appProperties.getStore().getImportBatchSize();
 		this.serverKeys = serverKeys;
 		this.objectMapper = new ObjectMapper();
-		this.jwtAlgorithm = Algorithm.ECDSA256(this.serverKeys.getPublicKey(), this.serverKeys.getPrivateKey());
-		this.repository = new RedisRepository();
+		this.vapidTokens = new VapidTokenCache(
+				Algorithm.ECDSA256(this.serverKeys.getPublicKey(), this.serverKeys.getPrivateKey()),
+				this.serverKeys.getPublicKeyBase64(), "mailto:example@example.com", Metrics.globalRegistry);
+		AppProperties.Expiration expiration = appProperties.getExpiration();
+		this.expirationSweeper = expiration.getSweepInterval().isZero() ? null
+				: new ExpirationSweeper(this.repository, expiration.getSweepInterval(),
+						expiration.getSweepBatchSize(), this::removeExpiredEndpoints);
+		new PushMetrics(this).bindTo(Metrics.globalRegistry);
 		Logger.getLogger(SubscriptionsHandler.class.getName()).info("SubscriptionsHandler has correctly been created");
 	}
 
-	public static SubscriptionsHandler getInstance(ServerKeys serverKeys) {
+	private static SubscriptionStore createStore(AppProperties appProperties) {
+		AppProperties.Store store = appProperties.getStore();
+		if (store.getType() == AppProperties.Store.Type.MEMORY) {
+			return new InMemorySubscriptionStore();
+		}
+		return new RedisRepository(store.getRedisAddress(), appProperties.getNearCache().getMaxSize(),
+				appProperties.getNearCache().getTtl());
+	}
+
+	private static DeliveryExecutor createDeliveryExecutor(AppProperties.Delivery delivery) {
+		switch (delivery.getExecutor()) {
+		case PLATFORM:
+			return DeliveryExecutor.platform(delivery.getExecutorThreads());
+		case VIRTUAL:
+			return DeliveryExecutor.virtual(
+					delivery.getExecutorThreads() > 0 ? delivery.getExecutorThreads() : delivery.getMaxInFlight());
+		default:
+			return null;
+		}
+	}
+
+	public static SubscriptionsHandler getInstance(ServerKeys serverKeys, AppProperties appProperties) {
 		if (subscriptionsHandlerInstance == null) {
-			subscriptionsHandlerInstance = new SubscriptionsHandler(serverKeys);
+			subscriptionsHandlerInstance = new SubscriptionsHandler(serverKeys, appProperties);
 		}
 		return subscriptionsHandlerInstance;
 	}
 
+	/**
+	 * @return the pool of key pairs used to encrypt the messages, or null if they
+	 *         are generated while encrypting
+	 */
+	public EphemeralKeyPairPool getEphemeralKeyPairPool() {
+		return this.ephemeralKeyPairPool;
+	}
+
+	/**
+	 * @return the local copy of the subscriptions, with its hits and misses, or
+	 *         null if it is disabled or the subscriptions are not in Redis
+	 */
+	public NearCache getNearCache() {
+		return this.repository instanceof RedisRepository ? ((RedisRepository) this.repository).getNearCache()
+				: null;
+	}
+
+	/**
+	 * @return the rate limiter and circuit breaker of each push service contacted
+	 */
+	public Collection<OriginThrottle> getOriginThrottles() {
+		return this.fanOutEngine.getOriginThrottles();
+	}
+
+	/**
+	 * @return the requests waiting for a response from any push service
+	 */
+	public int getInFlight() {
+		return this.fanOutEngine.getInFlight();
+	}
+
+	public SubscriberKeyCache getKeyCache() {
+		return this.keyCache;
+	}
+
+	/**
+	 * @return the deliveries waiting to be retried and the dead letters
+	 */
+	public DeliveryQueue getDeliveryQueue() {
+		return this.deliveryQueue;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the endpoint is not valid or not of an
+	 *                                  allowed push service
+	 */
 	public void subscribeUser(Subscription subscription) {
+		pushServices.check(subscription.getEndpoint());
 		repository.registerUser(subscription);
+		try {
+			keyCache.put(subscription);
+		} catch (InvalidKeySpecException e) {
+			Logger.getLogger(SubscriptionsHandler.class.getName()).info("parse subscription keys" + e);
+		}
+	}
+
+	/**
+	 * Stores the subscriptions and topics of a newline delimited JSON stream; the
+	 * keys are checked on import and cached on the first delivery to each
+	 * subscription
+	 */
+	public ImportReport importSubscriptions(InputStream ndjson) throws IOException {
+		return new SubscriptionImporter(repository, this.importBatchSize, this.pushServices,
+				this.cryptoService).importFrom(ndjson);
 	}
 
 	public void unsubscribeUser(SubscriptionEndpoint subscriptionEndpoint) {
 		repository.unregisterUserByEndpoint(subscriptionEndpoint.getEndpoint());
+		keyCache.invalidate(subscriptionEndpoint.getEndpoint());
 	}
 
 	public void unsubscribeUser(String username) {
@@ -85,72 +254,123 @@ public class SubscriptionsHandler {
 		repository.subscribeUserToTopic(topic, username);
 	}
 
-	public void publishMessageForTopic(String message, String topic) {
-		// retrieve info of users and associated subscriptions
-		Collection<String> usernames = repository.getAllUsernameFromTopic(topic);
-		Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
-		for (String username : usernames) {
-			Subscription sub = repository.getSubscriptionFromUsername(username);
-			subscriptions.put(sub.getEndpoint(), sub);
-		}
-		// sending message to each user
-		if (subscriptions.isEmpty()) {
-			Logger.getLogger(SubscriptionsHandler.class.getName()).info("No user to whom deliver message");
-			return;
-		}
+	/**
+	 * Starts the delivery of a message to the subscribers of a topic and returns
+	 * without waiting for it
+	 *
+	 * @return the report of the broadcast, also readable later by its id with
+	 *         {@link #getBroadcast(String)}
+	 */
+	public BroadcastReport publishMessageForTopic(String message, String topic) {
+		// the plaintext is the same for every subscriber, only its encryption differs
+		byte[] plainText;
 		try {
-			sendPushMessageToAllSubscribers(subscriptions, new PushMessage(topic, message));
-		} catch (IOException e) {
-			Logger.getLogger(PushController.class.getName()).info("Error sending message to users");
+			plainText = this.cryptoService.preparePlaintext(
+					this.objectMapper.writeValueAsBytes(new PushMessage(topic, message)), 0);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("serialize message", e);
 		}
+		BroadcastReport report = this.broadcasts.start();
+		this.publishers.execute(() -> sendPushMessageToAllSubscribers(report, topic, plainText));
+		return report;
 	}
 
-	private void sendPushMessageToAllSubscribers(Map<String, Subscription> subs, Object message)
-			throws JsonProcessingException {
+	/**
+	 * The reports are kept by the instance that published the broadcast, and
+	 * count only the retries this instance takes from the shared queue.
+	 *
+	 * @return the report of the broadcast, or null if it is unknown or too old
+	 */
+	public BroadcastReport getBroadcast(String broadcastId) {
+		return this.broadcasts.get(broadcastId);
+	}
 
-		Set<String> failedSubscriptions = new HashSet<>();
+	private void sendPushMessageToAllSubscribers(BroadcastReport report, String topic, byte[] plainText) {
+		// subscriptions are read while the first messages are already being sent
+		Collection<String> expired = new ConcurrentLinkedQueue<>();
+		Iterator<Subscription> subscriptions = skipExpired(
+				repository.scanSubscriptionsFromTopic(topic, this.readBatchSize), expired);
+		if (!subscriptions.hasNext()) {
+			Logger.getLogger(SubscriptionsHandler.class.getName()).info("No user to whom deliver message");
+		}
 
-		for (Subscription subscription : subs.values()) {
+		this.fanOutEngine.broadcast(report, subscriptions, subscription -> {
+			long start = System.nanoTime();
 			try {
-				byte[] result = this.cryptoService.encrypt(this.objectMapper.writeValueAsString(message),
-						subscription.getKeys().getP256dh(), subscription.getKeys().getAuth(), 0);
-				boolean remove = sendPushMessage(subscription, result);
-				if (remove) {
-					failedSubscriptions.add(subscription.getEndpoint());
-				}
+				return this.cryptoService.encrypt(plainText, this.keyCache.get(subscription));
 			} catch (InvalidKeyException | NoSuchAlgorithmException | InvalidAlgorithmParameterException
 					| IllegalStateException | InvalidKeySpecException | NoSuchPaddingException
 					| IllegalBlockSizeException | BadPaddingException e) {
 				Logger.getLogger(PushController.class.getName()).info("send encrypted messages" + e);
+				return null;
+			} finally {
+				this.metrics.recordEncryption(System.nanoTime() - start);
 			}
-		}
-
-		failedSubscriptions.forEach(repository::unregisterUserByEndpoint);
+		}).thenAccept(completed -> {
+			// gone and expired subscriptions are removed with a single call
+			List<String> removed = new ArrayList<>(completed.getGoneEndpoints());
+			removed.addAll(expired);
+			this.metrics.recordRemoved(repository.unregisterUsersByEndpoints(removed));
+			removed.forEach(keyCache::invalidate);
+			this.metrics.recordBroadcast(completed);
+			Logger.getLogger(SubscriptionsHandler.class.getName()).info("Broadcast completed: " + completed);
+		});
 	}
 
 	/**
-	 * @return true if the subscription is no longer valid and can be removed, false
-	 *         if everything is okay
+	 * Skips the subscriptions past their expiration time, which the push service
+	 * would reject after they are encrypted and sent, and collects their
+	 * endpoints
 	 */
-	private boolean sendPushMessage(Subscription subscription, byte[] body) {
-		String origin = null;
-		try {
-			URL url = new URL(subscription.getEndpoint());
-			origin = url.getProtocol() + "://" + url.getHost();
-		} catch (MalformedURLException e) {
-			Logger.getLogger(PushController.class.getName()).info("create origin" + e);
-			return true;
-		}
+	private static Iterator<Subscription> skipExpired(Iterator<Subscription> subscriptions,
+			Collection<String> expired) {
+		long now = System.currentTimeMillis();
+		return new Iterator<Subscription>() {
 
-		Date today = new Date();
-		Date expires = new Date(today.getTime() + 12 * 60 * 60 * 1000); // 12 hours
+			private Subscription next = advance();
 
-		String token = JWT.create().withAudience(origin).withExpiresAt(expires)
-				.withSubject("mailto:example@example.com").sign(this.jwtAlgorithm);
+			@Override
+			public boolean hasNext() {
+				return this.next != null;
+			}
 
-		URI endpointURI = URI.create(subscription.getEndpoint());
+			@Override
+			public Subscription next() {
+				if (this.next == null) {
+					throw new NoSuchElementException();
+				}
+				Subscription current = this.next;
+				this.next = advance();
+				return current;
+			}
+
+			private Subscription advance() {
+				while (subscriptions.hasNext()) {
+					Subscription subscription = subscriptions.next();
+					if (!subscription.isExpired(now)) {
+						return subscription;
+					}
+					expired.add(subscription.getEndpoint());
+				}
+				return null;
+			}
+		};
+	}
 
-		HttpRequest.Builder httpRequestBuilder = HttpRequest.newBuilder();
+	private void removeExpiredEndpoints(Collection<String> endpoints) {
+		this.metrics.recordRemoved(endpoints.size());
+		endpoints.forEach(keyCache::invalidate);
+	}
+
+	// a push service answered 404 or 410 to a retried delivery
+	private void removeGoneEndpoint(String endpoint) {
+		repository.unregisterUserByEndpoint(endpoint);
+		this.metrics.recordRemoved(1);
+		keyCache.invalidate(endpoint);
+	}
+
+	private HttpRequest buildPushRequest(PushEndpoint endpoint, byte[] body) {
+		HttpRequest.Builder httpRequestBuilder = this.transport.newRequest(endpoint);
 		if (body != null) {
 			httpRequestBuilder.POST(HttpRequest.BodyPublishers.ofByteArray(body))
 					.header("Content-Type", "application/octet-stream").header("Content-Encoding", "aes128gcm");
@@ -158,40 +378,8 @@ public class SubscriptionsHandler {
 			httpRequestBuilder.POST(HttpRequest.BodyPublishers.noBody());
 		}
 
-		HttpRequest request = httpRequestBuilder.uri(endpointURI).header("TTL", "180")
-				.header("Authorization", "vapid t=" + token + ", k=" + this.serverKeys.getPublicKeyBase64()).build();
-		try {
-			HttpResponse<Void> response = this.httpClient.send(request, HttpResponse.BodyHandlers.discarding());
-
-			switch (response.statusCode()) {
-			case 201:
-				Logger.getLogger(PushController.class.getName())
-						.info("Push message successfully sent: " + subscription.getEndpoint());
-				break;
-			case 404:
-			case 410:
-				Logger.getLogger(PushController.class.getName())
-						.info("Subscription not found or gone: " + subscription.getEndpoint());
-				// remove subscription from our collection of subscriptions
-				return true;
-			case 429:
-				Logger.getLogger(PushController.class.getName()).info("Too many requests: " + request);
-				break;
-			case 400:
-				Logger.getLogger(PushController.class.getName()).info("Invalid request: " + request);
-				break;
-			case 413:
-				Logger.getLogger(PushController.class.getName()).info("Payload size too large: " + request);
-				break;
-			default:
-				Logger.getLogger(PushController.class.getName())
-						.info("Unhandled status code: " + response.statusCode() + " -> " + request);
-			}
-		} catch (IOException | InterruptedException e) {
-			Logger.getLogger(PushController.class.getName()).info("Send push message" + e);
-		}
-
-		return false;
+		return httpRequestBuilder.header("TTL", "180")
+				.header("Authorization", this.vapidTokens.authorizationHeader(endpoint.getOrigin())).build();
 	}
 
 }
@@ -0,0 +1,82 @@
+package com.maurosalani.push_notification;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Signs one VAPID token for each push service origin and reuses it, together
+ * with the whole Authorization header, until shortly before it expires
+ */
+public class VapidTokenCache {
+
+	private static final long VALIDITY_MILLIS = 12 * 60 * 60 * 1000; // 12 hours
+
+	// a token is replaced this long before its expiration, so a request never
+	// reaches the push service with an expired token
+	private static final long REFRESH_MARGIN_MILLIS = 60 * 60 * 1000; // 1 hour
+
+	private final Algorithm jwtAlgorithm;
+
+	private final String publicKeyBase64;
+
+	private final String subject;
+
+	private final Map<String, Header> headers = new ConcurrentHashMap<>();
+
+	private final Timer signing;
+
+	public VapidTokenCache(Algorithm jwtAlgorithm, String publicKeyBase64, String subject) {
+		this(jwtAlgorithm, publicKeyBase64, subject, new CompositeMeterRegistry());
+	}
+
+	public VapidTokenCache(Algorithm jwtAlgorithm, String publicKeyBase64, String subject, MeterRegistry registry) {
+		this.jwtAlgorithm = jwtAlgorithm;
+		this.publicKeyBase64 = publicKeyBase64;
+		this.subject = subject;
+		this.signing = Timer.builder("push.vapid.signing").description("Signature of a VAPID token")
+				.register(registry);
+	}
+
+	/**
+	 * @return the value of the Authorization header for requests to the origin
+	 */
+	public String authorizationHeader(String origin) {
+		long now = System.currentTimeMillis();
+		Header header = this.headers.get(origin);
+		if (header == null || now >= header.refreshAt) {
+			header = this.headers.compute(origin,
+					(key, current) -> current != null && now < current.refreshAt ? current : sign(key, now));
+		}
+		return header.value;
+	}
+
+	private Header sign(String origin, long now) {
+		Date expires = new Date(now + VALIDITY_MILLIS);
+		String token = this.signing.record(() -> JWT.create().withAudience(origin).withExpiresAt(expires)
+				.withSubject(this.subject).sign(this.jwtAlgorithm));
+		return new Header("vapid t=" + token + ", k=" + this.publicKeyBase64,
+				now + VALIDITY_MILLIS - REFRESH_MARGIN_MILLIS);
+	}
+
+	private static final class Header {
+
+		private final String value;
+
+		private final long refreshAt;
+
+		private Header(String value, long refreshAt) {
+			this.value = value;
+			this.refreshAt = refreshAt;
+		}
+
+	}
+
+}
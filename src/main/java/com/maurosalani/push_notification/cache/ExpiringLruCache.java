@@ -0,0 +1,150 @@
+package com.maurosalani.push_notification.cache;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded in-memory cache that evicts the least recently used entries when it
+ * is full and drops entries older than a time to live. The keys are spread
+ * over independently locked segments so concurrent readers rarely contend.
+ */
+public class ExpiringLruCache<K, V> {
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment<K, V>[] segments;
+
+	private final long ttlNanos;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ExpiringLruCache(int maxSize, Duration ttl) {
+		this.ttlNanos = ttl.toNanos();
+		this.segments = new Segment[SEGMENTS];
+		int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment<>(segmentSize);
+		}
+	}
+
+	/**
+	 * @return the cached value, or null if it is missing or expired
+	 */
+	public V get(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		V value;
+		synchronized (segment) {
+			Entry<V> entry = segment.get(key);
+			if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+				segment.remove(key);
+				entry = null;
+			}
+			value = entry == null ? null : entry.value;
+		}
+		if (value == null) {
+			this.misses.increment();
+		} else {
+			this.hits.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * @return the cached value, loading and caching it if missing. A null result
+	 *         of the loader is returned but not cached.
+	 */
+	public V get(K key, Function<K, V> loader) {
+		V value = get(key);
+		if (value == null) {
+			value = loader.apply(key);
+			if (value != null) {
+				put(key, value);
+			}
+		}
+		return value;
+	}
+
+	public void put(K key, V value) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, new Entry<>(value, System.nanoTime() + this.ttlNanos));
+		}
+	}
+
+	public void invalidate(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		for (Segment<K, V> segment : this.segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : this.segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return this.segments[hash & (SEGMENTS - 1)];
+	}
+
+	private static final class Entry<V> {
+
+		private final V value;
+
+		private final long expiresAt;
+
+		private Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	private static final class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		private Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+			return size() > this.maxSize;
+		}
+
+	}
+
+}
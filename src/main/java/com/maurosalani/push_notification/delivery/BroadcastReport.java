@@ -0,0 +1,152 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of the delivery of one message to the subscribers of a topic. The
+ * counters are updated while the broadcast is running. The broadcast completes
+ * when every subscriber had its first attempt; the deliveries that are retried
+ * are counted as retrying until they settle.
+ */
+public class BroadcastReport {
+
+	private final String broadcastId;
+
+	private final long startedAt = System.currentTimeMillis();
+
+	private volatile long completedAt;
+
+	private final AtomicInteger sent = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final AtomicInteger retrying = new AtomicInteger();
+
+	private final Set<String> goneEndpoints = ConcurrentHashMap.newKeySet();
+
+	private final CompletableFuture<BroadcastReport> completion = new CompletableFuture<>();
+
+	public BroadcastReport(String broadcastId) {
+		this.broadcastId = broadcastId;
+	}
+
+	/**
+	 * @return the report of a broadcast that had nothing to deliver
+	 */
+	public static BroadcastReport empty(String broadcastId) {
+		BroadcastReport report = new BroadcastReport(broadcastId);
+		report.complete();
+		return report;
+	}
+
+	/**
+	 * Counts the outcome of the first attempt of one of the deliveries of the
+	 * broadcast
+	 */
+	public void record(DeliveryTask task, DeliveryOutcome outcome) {
+		if (outcome == DeliveryOutcome.RETRYING) {
+			this.retrying.incrementAndGet();
+		}
+		count(task, outcome);
+	}
+
+	/**
+	 * Counts the outcome of an attempt of a delivery taken from the retry queue
+	 */
+	public void recordRetry(DeliveryTask task, DeliveryOutcome outcome) {
+		if (outcome != DeliveryOutcome.RETRYING) {
+			this.retrying.decrementAndGet();
+		}
+		count(task, outcome);
+	}
+
+	private void count(DeliveryTask task, DeliveryOutcome outcome) {
+		switch (outcome) {
+		case DELIVERED:
+			delivered();
+			break;
+		case GONE:
+			gone(task.getEndpoint());
+			break;
+		case FAILED:
+			failed();
+			break;
+		default:
+			break;
+		}
+	}
+
+	void delivered() {
+		this.sent.incrementAndGet();
+	}
+
+	void failed() {
+		this.failed.incrementAndGet();
+	}
+
+	void gone(String endpoint) {
+		this.goneEndpoints.add(endpoint);
+	}
+
+	void complete() {
+		this.completedAt = System.currentTimeMillis();
+		this.completion.complete(this);
+	}
+
+	public String getBroadcastId() {
+		return this.broadcastId;
+	}
+
+	public int getSent() {
+		return this.sent.get();
+	}
+
+	public int getFailed() {
+		return this.failed.get();
+	}
+
+	public int getRemoved() {
+		return this.goneEndpoints.size();
+	}
+
+	/**
+	 * @return the deliveries waiting for another attempt
+	 */
+	public int getRetrying() {
+		return this.retrying.get();
+	}
+
+	/**
+	 * @return the endpoints the push services answered with 404 or 410
+	 */
+	public Set<String> getGoneEndpoints() {
+		return Collections.unmodifiableSet(this.goneEndpoints);
+	}
+
+	public boolean isCompleted() {
+		return this.completedAt != 0;
+	}
+
+	/**
+	 * @return a future completed with this report when the broadcast completes
+	 */
+	public CompletableFuture<BroadcastReport> whenCompleted() {
+		return this.completion;
+	}
+
+	public long getElapsedMillis() {
+		return (isCompleted() ? this.completedAt : System.currentTimeMillis()) - this.startedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "BroadcastReport [broadcastId=" + this.broadcastId + ", sent=" + getSent() + ", failed="
+				+ getFailed() + ", removed=" + getRemoved() + ", retrying=" + getRetrying() + ", elapsedMillis="
+				+ getElapsedMillis() + "]";
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import com.maurosalani.push_notification.cache.ExpiringLruCache;
+
+/**
+ * Assigns the ids of the broadcasts and keeps their reports for a while, so
+ * their progress can be read after publishing returned. The reports live in
+ * this instance only: a retry taken from the shared queue by another instance
+ * is not counted in them.
+ */
+public class BroadcastTracker {
+
+	private final ExpiringLruCache<String, BroadcastReport> reports;
+
+	public BroadcastTracker(int maxReports, Duration retention) {
+		this.reports = new ExpiringLruCache<>(maxReports, retention);
+	}
+
+	public BroadcastReport start() {
+		BroadcastReport report = new BroadcastReport(UUID.randomUUID().toString());
+		this.reports.put(report.getBroadcastId(), report);
+		return report;
+	}
+
+	/**
+	 * @return the report of the broadcast, or null if it is unknown or too old
+	 */
+	public BroadcastReport get(String broadcastId) {
+		return this.reports.get(broadcastId);
+	}
+
+}
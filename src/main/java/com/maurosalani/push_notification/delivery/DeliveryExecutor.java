@@ -0,0 +1,113 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Threads that prepare the deliveries of the broadcasts and hand them to the
+ * transport. The fan-out engine submits a delivery only once it holds its
+ * in-flight windows, so the tasks waiting for a thread are bounded by the
+ * global window.
+ *
+ * The platform executor, one thread for each core by default, encrypts the
+ * messages in parallel and hands the requests to the transport, whose own
+ * threads handle the answers. The virtual executor is blocking: each delivery
+ * encrypts the message and then waits for the answer of the push service on
+ * its own thread, and a semaphore bounds the deliveries running at once.
+ */
+public final class DeliveryExecutor {
+
+	private final ExecutorService executor;
+
+	// null unless the deliveries wait for the answer on their thread
+	private final Semaphore running;
+
+	private final int maxRunning;
+
+	private DeliveryExecutor(ExecutorService executor, int maxRunning, boolean blocking) {
+		this.executor = executor;
+		this.running = blocking ? new Semaphore(maxRunning) : null;
+		this.maxRunning = maxRunning;
+	}
+
+	/**
+	 * @param threads the size of the pool, or 0 for one thread for each core
+	 */
+	public static DeliveryExecutor platform(int threads) {
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		return new DeliveryExecutor(newPool("delivery-", poolSize), poolSize, false);
+	}
+
+	/**
+	 * Creates a virtual thread for every delivery when the JVM supports them, or
+	 * falls back to a pool of platform threads. The application is compiled for
+	 * Java 11, so the executor is looked up by reflection.
+	 *
+	 * @param maxRunning the deliveries encrypting or waiting for an answer at
+	 *                   once, and the size of the fallback pool
+	 */
+	public static DeliveryExecutor virtual(int maxRunning) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new DeliveryExecutor((ExecutorService) factory.invoke(null), maxRunning, true);
+		} catch (ReflectiveOperationException e) {
+			Logger.getLogger(DeliveryExecutor.class.getName())
+					.info("Virtual threads not available, using platform threads " + e);
+			return new DeliveryExecutor(newPool("delivery-", maxRunning), maxRunning, true);
+		}
+	}
+
+	/**
+	 * @return true if the deliveries wait for the answer of the push service on
+	 *         their thread
+	 */
+	public boolean isBlocking() {
+		return this.running != null;
+	}
+
+	/**
+	 * @return the deliveries holding the semaphore of a blocking executor
+	 */
+	public int getRunning() {
+		return this.running == null ? 0 : this.maxRunning - this.running.availablePermits();
+	}
+
+	/**
+	 * Runs the delivery on a thread of the executor, without waiting
+	 *
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor was
+	 *                                                         shut down
+	 */
+	public void execute(Runnable delivery) {
+		if (this.running == null) {
+			this.executor.execute(delivery);
+			return;
+		}
+		this.executor.execute(() -> {
+			// the delivery holds windows, so it runs even if interrupted
+			this.running.acquireUninterruptibly();
+			try {
+				delivery.run();
+			} finally {
+				this.running.release();
+			}
+		});
+	}
+
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	private static ExecutorService newPool(String name, int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, name + threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
@@ -0,0 +1,116 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Meters of the deliveries: latency and status of every request by push
+ * service origin, encryption time, size and duration of the broadcasts and
+ * the subscriptions removed because they are gone
+ */
+public class DeliveryMetrics {
+
+	private final MeterRegistry registry;
+
+	private final Timer encryption;
+
+	private final Timer broadcastDuration;
+
+	private final DistributionSummary broadcastSize;
+
+	private final Counter removedSubscriptions;
+
+	// timers of the requests by origin and status, registered once
+	private final Map<String, Map<String, Timer>> requests = new ConcurrentHashMap<>();
+
+	public DeliveryMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		this.encryption = Timer.builder("push.encryption").description("Encryption of a message for a subscriber")
+				.register(registry);
+		this.broadcastDuration = Timer.builder("push.broadcast.duration")
+				.description("Time until every push service answered the first attempt").register(registry);
+		this.broadcastSize = DistributionSummary.builder("push.broadcast.size")
+				.description("Subscribers of the topic of a broadcast").baseUnit("subscriptions").register(registry);
+		this.removedSubscriptions = Counter.builder("push.subscriptions.removed")
+				.description("Subscriptions removed because their push service answered 404 or 410")
+				.register(registry);
+	}
+
+	/**
+	 * @return metrics that are not published anywhere
+	 */
+	public static DeliveryMetrics disabled() {
+		return new DeliveryMetrics(new CompositeMeterRegistry());
+	}
+
+	public void recordEncryption(long nanos) {
+		this.encryption.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the latency of a request. Its histogram is published only when
+	 * enabled with management.metrics.distribution.percentiles-histogram.push.requests
+	 *
+	 * @param status the status code of the response, or "error" if there is none
+	 */
+	public void recordResponse(String origin, String status, long nanos) {
+		Map<String, Timer> byStatus = this.requests.get(origin);
+		if (byStatus == null) {
+			byStatus = this.requests.computeIfAbsent(origin, key -> new ConcurrentHashMap<>());
+		}
+		Timer timer = byStatus.get(status);
+		if (timer == null) {
+			timer = byStatus.computeIfAbsent(status,
+					key -> Timer.builder("push.requests").description("Requests to the push services")
+							.tag("origin", origin).tag("status", key).register(this.registry));
+		}
+		timer.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordRemoved(long subscriptions) {
+		this.removedSubscriptions.increment(subscriptions);
+	}
+
+	public void recordBroadcast(BroadcastReport report) {
+		this.broadcastDuration.record(report.getElapsedMillis(), TimeUnit.MILLISECONDS);
+		this.broadcastSize
+				.record(report.getSent() + report.getFailed() + report.getRemoved() + report.getRetrying());
+	}
+
+	/**
+	 * Publishes the state of the throttle of an origin
+	 */
+	public OriginThrottle bind(OriginThrottle throttle) {
+		Gauge.builder("push.origin.rate", throttle, OriginThrottle::getRate)
+				.description("Requests per second allowed to the origin").tag("origin", throttle.getOrigin())
+				.register(this.registry);
+		Gauge.builder("push.origin.circuit.open", throttle,
+				origin -> origin.getState() == OriginThrottle.CircuitState.CLOSED ? 0 : 1)
+				.description("1 while the circuit of the origin is open or half open")
+				.tag("origin", throttle.getOrigin()).register(this.registry);
+		registerCounter("push.origin.throttled", throttle, OriginThrottle::getThrottled,
+				"429 answers of the origin");
+		registerCounter("push.origin.deferred", throttle, OriginThrottle::getDeferred,
+				"Requests to the origin that were not sent immediately");
+		registerCounter("push.origin.opened", throttle, OriginThrottle::getOpened,
+				"Times the circuit of the origin opened");
+		return throttle;
+	}
+
+	private void registerCounter(String name, OriginThrottle throttle,
+			ToDoubleFunction<OriginThrottle> count, String description) {
+		FunctionCounter.builder(name, throttle, count).description(description)
+				.tag("origin", throttle.getOrigin()).register(this.registry);
+	}
+
+}
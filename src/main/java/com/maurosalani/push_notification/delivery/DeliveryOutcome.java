@@ -0,0 +1,19 @@
+package com.maurosalani.push_notification.delivery;
+
+/**
+ * Result of one attempt to deliver a message
+ */
+public enum DeliveryOutcome {
+
+	DELIVERED,
+
+	// the push service answered 404 or 410, the subscription has to be removed
+	GONE,
+
+	// the attempt failed and another one has been scheduled
+	RETRYING,
+
+	// the message will not be delivered
+	FAILED
+
+}
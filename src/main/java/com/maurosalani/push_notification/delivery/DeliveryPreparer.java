@@ -0,0 +1,16 @@
+package com.maurosalani.push_notification.delivery;
+
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Encrypts the message of a broadcast for one subscription
+ */
+@FunctionalInterface
+public interface DeliveryPreparer {
+
+	/**
+	 * @return the body to send, or null if the payload could not be prepared
+	 */
+	byte[] prepare(Subscription subscription);
+
+}
@@ -0,0 +1,43 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.util.List;
+
+/**
+ * Deliveries waiting for another attempt, and the ones that exhausted their
+ * attempts
+ */
+public interface DeliveryQueue {
+
+	/**
+	 * Makes the task available to {@link #poll(int, long)} after the delay
+	 */
+	void schedule(DeliveryTask task, long delayMillis);
+
+	/**
+	 * Waits up to the timeout for a task whose delay elapsed, then takes it
+	 * along with the ones due with it
+	 * 
+	 * @return at most maxTasks tasks, empty if none was due within the timeout
+	 */
+	List<DeliveryTask> poll(int maxTasks, long timeoutMillis) throws InterruptedException;
+
+	/**
+	 * Called once the attempt of a polled task is over, whatever its outcome.
+	 * Until then the queue keeps the task, to give it back if the instance
+	 * that polled it stops.
+	 */
+	void complete(DeliveryTask task);
+
+	/**
+	 * Keeps a task that will not be attempted again, so it can be inspected
+	 */
+	void deadLetter(DeliveryTask task);
+
+	/**
+	 * @return the number of tasks waiting for an attempt
+	 */
+	int size();
+
+	int getDeadLetterCount();
+
+}
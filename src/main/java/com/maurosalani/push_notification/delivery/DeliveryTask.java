@@ -0,0 +1,79 @@
+package com.maurosalani.push_notification.delivery;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One encrypted message to deliver to one endpoint. The body is encrypted once,
+ * so every retry sends the same message.
+ */
+public class DeliveryTask {
+
+	private final String broadcastId;
+
+	private final String endpoint;
+
+	private final byte[] body;
+
+	// attempts already failed
+	private final int attempt;
+
+	// the task waited for a token of the rate limiter of its origin
+	private final boolean tokenReserved;
+
+	public DeliveryTask(String broadcastId, String endpoint, byte[] body, int attempt) {
+		this(broadcastId, endpoint, body, attempt, false);
+	}
+
+	@JsonCreator
+	public DeliveryTask(@JsonProperty("broadcastId") String broadcastId, @JsonProperty("endpoint") String endpoint,
+			@JsonProperty("body") byte[] body, @JsonProperty("attempt") int attempt,
+			@JsonProperty("tokenReserved") boolean tokenReserved) {
+		this.broadcastId = broadcastId;
+		this.endpoint = endpoint;
+		this.body = body;
+		this.attempt = attempt;
+		this.tokenReserved = tokenReserved;
+	}
+
+	public String getBroadcastId() {
+		return this.broadcastId;
+	}
+
+	public String getEndpoint() {
+		return this.endpoint;
+	}
+
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	public int getAttempt() {
+		return this.attempt;
+	}
+
+	public boolean isTokenReserved() {
+		return this.tokenReserved;
+	}
+
+	/**
+	 * @return the same attempt, once its token of the rate limiter is available
+	 */
+	public DeliveryTask withTokenReserved() {
+		return new DeliveryTask(this.broadcastId, this.endpoint, this.body, this.attempt, true);
+	}
+
+	/**
+	 * @return the same delivery, after one more failed attempt
+	 */
+	public DeliveryTask nextAttempt() {
+		return new DeliveryTask(this.broadcastId, this.endpoint, this.body, this.attempt + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "DeliveryTask [broadcastId=" + this.broadcastId + ", endpoint=" + this.endpoint + ", attempt="
+				+ this.attempt + "]";
+	}
+
+}
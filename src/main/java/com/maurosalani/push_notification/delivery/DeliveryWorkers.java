@@ -0,0 +1,95 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Threads that take the deliveries due for another attempt from the queue and
+ * send them through the fan-out engine, so retries share its in-flight windows.
+ */
+public class DeliveryWorkers {
+
+	private static final long POLL_TIMEOUT_MILLIS = 1000;
+
+	private final DeliveryQueue queue;
+
+	private final FanOutEngine engine;
+
+	private final BroadcastTracker broadcasts;
+
+	private final Consumer<String> goneEndpoints;
+
+	private final int batchSize;
+
+	private final Thread[] workers;
+
+	/**
+	 * @param goneEndpoints called with the endpoints a push service answered 404
+	 *                      or 410 to a retry
+	 * @param batchSize     maximum number of tasks a worker takes from the queue
+	 *                      at once
+	 */
+	public DeliveryWorkers(DeliveryQueue queue, FanOutEngine engine, BroadcastTracker broadcasts,
+			Consumer<String> goneEndpoints, int threads, int batchSize) {
+		this.queue = queue;
+		this.engine = engine;
+		this.broadcasts = broadcasts;
+		this.goneEndpoints = goneEndpoints;
+		this.batchSize = batchSize;
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			this.workers[i] = new Thread(this::work, "delivery-worker-" + i);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	public void shutdown() {
+		for (Thread worker : this.workers) {
+			worker.interrupt();
+		}
+	}
+
+	private void work() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				List<DeliveryTask> tasks = this.queue.poll(this.batchSize, POLL_TIMEOUT_MILLIS);
+				for (DeliveryTask task : tasks) {
+					this.engine.deliver(task).whenComplete((outcome, error) -> settle(task, outcome, error));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				// the queue is not reachable, wait before polling again
+				Logger.getLogger(DeliveryWorkers.class.getName()).info("poll delivery queue" + e);
+				pause();
+			}
+		}
+	}
+
+	private void settle(DeliveryTask task, DeliveryOutcome outcome, Throwable error) {
+		if (error != null) {
+			Logger.getLogger(DeliveryWorkers.class.getName()).info("retry delivery " + task + error);
+			outcome = DeliveryOutcome.FAILED;
+		}
+		BroadcastReport report = this.broadcasts.get(task.getBroadcastId());
+		if (report != null) {
+			report.recordRetry(task, outcome);
+		}
+		if (outcome == DeliveryOutcome.GONE) {
+			this.goneEndpoints.accept(task.getEndpoint());
+		}
+		// the next attempt, if any, is already in the queue
+		this.queue.complete(task);
+	}
+
+	private static void pause() {
+		try {
+			Thread.sleep(POLL_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
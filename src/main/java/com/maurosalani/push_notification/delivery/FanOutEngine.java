@@ -0,0 +1,525 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Delivers a message to many subscriptions without waiting for each push
+ * service to answer before sending the next request. The number of requests
+ * waiting for a response is bounded both globally and for each push service
+ * origin, so a broadcast to a large topic cannot exhaust connections or memory.
+ * A delivery whose origin has no free window waits in the queue of the origin
+ * and is sent when a response frees one, so a slow origin never holds the
+ * thread of the broadcast while the others could be sent to; that thread only
+ * waits when maxQueued deliveries are waiting.
+ *
+ * Each origin has an {@link OriginThrottle}, asked before the message is
+ * encrypted. While it is rate limited, paused or its circuit is open the
+ * deliveries wait in the queue of the origin, unencrypted and without holding
+ * the windows, until a timer or the answer to the probe request drains it
+ * again. Deliveries that fail because of the network, a 429 or a 5xx are
+ * scheduled again on the retry queue, until the retry policy gives up and they
+ * are dead lettered.
+ *
+ * By default the thread that finds a free window prepares the request itself.
+ * With a {@link DeliveryExecutor} the requests are prepared on its threads
+ * instead, so the encryption runs in parallel; a blocking one also waits there
+ * for the answer. A request is prepared only once its windows are taken, so no
+ * encrypted message waits for the network.
+ */
+public class FanOutEngine {
+
+	private final PushTransport transport;
+
+	private final Semaphore inFlight;
+
+	private final int maxInFlightPerOrigin;
+
+	private final Map<String, OriginLane> lanes = new ConcurrentHashMap<>();
+
+	// deliveries waiting in the lanes
+	private final Semaphore queued;
+
+	// lanes waiting for the global window
+	private final Queue<OriginLane> stalled = new ConcurrentLinkedQueue<>();
+
+	// drains the lanes again when their origin admits requests
+	private final ScheduledExecutorService wakeUps;
+
+	private final PushRequestFactory requestFactory;
+
+	private final DeliveryQueue retryQueue;
+
+	private final RetryPolicy retryPolicy;
+
+	private final Function<String, OriginThrottle> throttleFactory;
+
+	private final Map<String, OriginThrottle> throttles = new ConcurrentHashMap<>();
+
+	// null when the deliveries are prepared by the thread that drains their lane
+	private final DeliveryExecutor deliveryExecutor;
+
+	private final DeliveryMetrics metrics;
+
+	private final int maxInFlight;
+
+	public FanOutEngine(PushTransport transport, int maxInFlight, int maxInFlightPerOrigin, int maxQueued,
+			PushRequestFactory requestFactory, DeliveryQueue retryQueue, RetryPolicy retryPolicy,
+			Function<String, OriginThrottle> throttleFactory) {
+		this(transport, maxInFlight, maxInFlightPerOrigin, maxQueued, requestFactory, retryQueue, retryPolicy,
+				throttleFactory, null, DeliveryMetrics.disabled());
+	}
+
+	/**
+	 * @param maxQueued the deliveries waiting for a window of their origin, beyond
+	 *                  which the broadcasts and the retries wait
+	 */
+	public FanOutEngine(PushTransport transport, int maxInFlight, int maxInFlightPerOrigin, int maxQueued,
+			PushRequestFactory requestFactory, DeliveryQueue retryQueue, RetryPolicy retryPolicy,
+			Function<String, OriginThrottle> throttleFactory, DeliveryExecutor deliveryExecutor,
+			DeliveryMetrics metrics) {
+		this.transport = transport;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.maxInFlightPerOrigin = maxInFlightPerOrigin;
+		this.queued = new Semaphore(maxQueued);
+		this.wakeUps = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread wakeUp = new Thread(runnable, "origin-wake-up");
+			wakeUp.setDaemon(true);
+			return wakeUp;
+		});
+		this.requestFactory = requestFactory;
+		this.retryQueue = retryQueue;
+		this.retryPolicy = retryPolicy;
+		this.throttleFactory = throttleFactory;
+		this.deliveryExecutor = deliveryExecutor;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the throttles of the origins contacted so far
+	 */
+	public Collection<OriginThrottle> getOriginThrottles() {
+		return Collections.unmodifiableCollection(this.throttles.values());
+	}
+
+	/**
+	 * @return the requests waiting for a response from any push service
+	 */
+	public int getInFlight() {
+		return this.maxInFlight - this.inFlight.availablePermits();
+	}
+
+	/**
+	 * Sends a request to every subscription. The calling thread queues the
+	 * deliveries on their origins and blocks only while maxQueued deliveries are
+	 * waiting.
+	 *
+	 * @return a future completed when every push service has answered the first
+	 *         attempt
+	 */
+	public CompletableFuture<BroadcastReport> broadcast(BroadcastReport report, Iterator<Subscription> subscriptions,
+			DeliveryPreparer preparer) {
+		// one extra party for the loop below, so the broadcast cannot complete while
+		// requests are still being submitted
+		AtomicInteger pending = new AtomicInteger(1);
+
+		while (subscriptions.hasNext() && !Thread.currentThread().isInterrupted()) {
+			Subscription subscription = subscriptions.next();
+			PushEndpoint endpoint;
+			try {
+				endpoint = this.transport.endpoint(subscription.getEndpoint());
+			} catch (MalformedURLException e) {
+				Logger.getLogger(FanOutEngine.class.getName()).info("create origin" + e);
+				report.gone(subscription.getEndpoint());
+				continue;
+			}
+			if (!this.transport.allows(endpoint)) {
+				// stored before its push service was refused; it is kept
+				Logger.getLogger(FanOutEngine.class.getName()).info("Push service not allowed: " + endpoint);
+				report.failed();
+				continue;
+			}
+			if (!acquireQueued()) {
+				break;
+			}
+			pending.incrementAndGet();
+			Waiting waiting = new Waiting(endpoint, report.getBroadcastId(), subscription, preparer);
+			waiting.outcome.whenComplete((outcome, error) -> {
+				if (error != null || waiting.task == null) {
+					// the preparation failed, or the delivery was never attempted
+					report.failed();
+				} else {
+					report.record(waiting.task, outcome);
+				}
+				arrive(report, pending);
+			});
+			enqueue(waiting);
+		}
+
+		arrive(report, pending);
+		return report.whenCompleted();
+	}
+
+	private static void arrive(BroadcastReport report, AtomicInteger pending) {
+		if (pending.decrementAndGet() == 0) {
+			report.complete();
+		}
+	}
+
+	/**
+	 * Sends one attempt of a delivery, as soon as its origin admits it and has a
+	 * free window. The calling thread blocks only while maxQueued deliveries are
+	 * waiting.
+	 *
+	 * @return a future completed when the push service has answered and, if
+	 *         needed, the next attempt has been scheduled
+	 */
+	public CompletableFuture<DeliveryOutcome> deliver(DeliveryTask task) {
+		PushEndpoint endpoint;
+		try {
+			endpoint = this.transport.endpoint(task.getEndpoint());
+		} catch (MalformedURLException e) {
+			Logger.getLogger(FanOutEngine.class.getName()).info("create origin" + e);
+			return CompletableFuture.completedFuture(DeliveryOutcome.GONE);
+		}
+		if (!this.transport.allows(endpoint)) {
+			Logger.getLogger(FanOutEngine.class.getName()).info("Push service not allowed: " + endpoint);
+			return CompletableFuture.completedFuture(DeliveryOutcome.FAILED);
+		}
+
+		if (!acquireQueued()) {
+			// nothing was sent, so the attempt is not used
+			this.retryQueue.schedule(task, 0);
+			return CompletableFuture.completedFuture(DeliveryOutcome.RETRYING);
+		}
+		Waiting waiting = new Waiting(endpoint, task);
+		enqueue(waiting);
+		return waiting.outcome;
+	}
+
+	private boolean acquireQueued() {
+		try {
+			this.queued.acquire();
+			return true;
+		} catch (InterruptedException e) {
+			Logger.getLogger(FanOutEngine.class.getName()).info("Delivery interrupted" + e);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void enqueue(Waiting waiting) {
+		OriginLane lane = this.lanes.computeIfAbsent(waiting.endpoint.getOrigin(),
+				origin -> new OriginLane(this.throttles.computeIfAbsent(origin, this.throttleFactory),
+						this.maxInFlightPerOrigin));
+		lane.waiting.add(waiting);
+		drain(lane);
+	}
+
+	// sends the deliveries of the lane while its origin admits them and the
+	// windows have room; a single thread drains a lane at a time, the others leave
+	// it the work
+	private void drain(OriginLane lane) {
+		if (lane.draining.getAndIncrement() != 0) {
+			return;
+		}
+		do {
+			while (!lane.parked && !lane.waiting.isEmpty() && acquireWindows(lane)) {
+				Waiting next = lane.waiting.peek();
+				OriginThrottle.Admission admission = lane.throttle.admit(next.tokenReserved);
+				if (admission.isSend()) {
+					lane.waiting.poll();
+					this.queued.release();
+					// every request admitted while the circuit is half open is a probe
+					boolean probe = lane.throttle.getState() == OriginThrottle.CircuitState.HALF_OPEN;
+					dispatch(next, () -> send(lane, next, probe), () -> releaseWindows(lane, true));
+				} else {
+					// the token, if any, was taken: the delivery is the next to go
+					next.tokenReserved |= admission.getWait() == OriginThrottle.Admission.Wait.RATE_LIMITED;
+					releaseWindows(lane, false);
+					lane.parked = true;
+					this.wakeUps.schedule(() -> {
+						lane.parked = false;
+						drain(lane);
+					}, admission.getDelayMillis(), TimeUnit.MILLISECONDS);
+				}
+			}
+		} while (lane.draining.decrementAndGet() != 0);
+	}
+
+	// a response of the origin drains the lane again; a response of any origin
+	// drains the lanes stalled on the global window
+	private boolean acquireWindows(OriginLane lane) {
+		if (!lane.window.tryAcquire()) {
+			return false;
+		}
+		if (this.inFlight.tryAcquire()) {
+			return true;
+		}
+		if (lane.stalled.compareAndSet(false, true)) {
+			this.stalled.add(lane);
+		}
+		// the global window may have been released before the lane was added
+		if (this.inFlight.tryAcquire()) {
+			return true;
+		}
+		lane.window.release();
+		return false;
+	}
+
+	private void releaseWindows(OriginLane lane, boolean drain) {
+		this.inFlight.release();
+		lane.window.release();
+		if (drain) {
+			drain(lane);
+		}
+		OriginLane stalledLane;
+		while (this.inFlight.availablePermits() > 0 && (stalledLane = this.stalled.poll()) != null) {
+			stalledLane.stalled.set(false);
+			drain(stalledLane);
+		}
+	}
+
+	// runs the preparation and the send on the executor, if any; release gives back
+	// what the delivery holds if the executor rejects it
+	private void dispatch(Waiting waiting, Runnable delivery, Runnable release) {
+		Runnable guarded = () -> {
+			try {
+				delivery.run();
+			} catch (RuntimeException e) {
+				// the retry queue is not reachable
+				Logger.getLogger(FanOutEngine.class.getName()).info("Deliver push message" + e);
+				waiting.outcome.completeExceptionally(e);
+			}
+		};
+		if (this.deliveryExecutor == null) {
+			guarded.run();
+			return;
+		}
+		try {
+			this.deliveryExecutor.execute(guarded);
+		} catch (RejectedExecutionException e) {
+			Logger.getLogger(FanOutEngine.class.getName()).info("Delivery rejected" + e);
+			release.run();
+			waiting.outcome.completeExceptionally(e);
+		}
+	}
+
+	// the windows are held by the caller; the answer to a probe wakes the lane up
+	// without waiting for its timer
+	private void send(OriginLane lane, Waiting waiting, boolean probe) {
+		DeliveryTask task = waiting.prepare();
+		if (task == null) {
+			releaseWindows(lane, true);
+			waiting.outcome.complete(DeliveryOutcome.FAILED);
+			return;
+		}
+
+		PushEndpoint endpoint = waiting.endpoint;
+		HttpRequest request;
+		try {
+			request = this.requestFactory.create(endpoint, task.getBody());
+		} catch (RuntimeException e) {
+			releaseWindows(lane, true);
+			throw e;
+		}
+		long sentAt = System.nanoTime();
+		if (this.deliveryExecutor != null && this.deliveryExecutor.isBlocking()) {
+			HttpResponse<Void> response = null;
+			Throwable error = null;
+			try {
+				response = this.transport.send(endpoint, request, HttpResponse.BodyHandlers.discarding());
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = e;
+			}
+			waiting.outcome.complete(answered(lane, task, request, response, error, probe, sentAt));
+			return;
+		}
+		this.transport.sendAsync(endpoint, request, HttpResponse.BodyHandlers.discarding())
+				.handle((response, error) -> answered(lane, task, request, response, error, probe, sentAt))
+				.whenComplete((outcome, error) -> {
+					if (error != null) {
+						waiting.outcome.completeExceptionally(error);
+					} else {
+						waiting.outcome.complete(outcome);
+					}
+				});
+	}
+
+	// records the answer and gives back the windows once the throttle knows it
+	private DeliveryOutcome answered(OriginLane lane, DeliveryTask task, HttpRequest request,
+			HttpResponse<?> response, Throwable error, boolean probe, long sentAt) {
+		try {
+			this.metrics.recordResponse(lane.throttle.getOrigin(),
+					error != null ? "error" : Integer.toString(response.statusCode()), System.nanoTime() - sentAt);
+			if (error != null) {
+				Logger.getLogger(FanOutEngine.class.getName()).info("Send push message" + error);
+				lane.throttle.onFailure();
+				return retry(task, -1);
+			}
+			return handleResponse(task, request, response, lane.throttle);
+		} finally {
+			if (probe) {
+				lane.parked = false;
+			}
+			releaseWindows(lane, true);
+		}
+	}
+
+	private DeliveryOutcome retry(DeliveryTask task, long retryAfterMillis) {
+		if (this.retryPolicy.canRetry(task)) {
+			this.retryQueue.schedule(task.nextAttempt(), this.retryPolicy.delayMillis(task, retryAfterMillis));
+			return DeliveryOutcome.RETRYING;
+		}
+		Logger.getLogger(FanOutEngine.class.getName()).info("Delivery dead lettered: " + task);
+		this.retryQueue.deadLetter(task);
+		return DeliveryOutcome.FAILED;
+	}
+
+	private DeliveryOutcome handleResponse(DeliveryTask task, HttpRequest request, HttpResponse<?> response,
+			OriginThrottle throttle) {
+		int statusCode = response.statusCode();
+		if (statusCode == 429) {
+			Logger.getLogger(FanOutEngine.class.getName()).info("Too many requests: " + request);
+			long retryAfterMillis = RetryPolicy.retryAfterMillis(
+					response.headers().firstValue("Retry-After").orElse(null), System.currentTimeMillis());
+			throttle.onThrottled(retryAfterMillis);
+			return retry(task, retryAfterMillis);
+		}
+		if (statusCode >= 500) {
+			Logger.getLogger(FanOutEngine.class.getName())
+					.info("Push service error: " + statusCode + " -> " + request);
+			throttle.onFailure();
+			return retry(task, -1);
+		}
+		throttle.onSuccess();
+		switch (statusCode) {
+		case 201:
+			Logger.getLogger(FanOutEngine.class.getName())
+					.info("Push message successfully sent: " + task.getEndpoint());
+			return DeliveryOutcome.DELIVERED;
+		case 404:
+		case 410:
+			Logger.getLogger(FanOutEngine.class.getName())
+					.info("Subscription not found or gone: " + task.getEndpoint());
+			// remove subscription from our collection of subscriptions
+			return DeliveryOutcome.GONE;
+		case 400:
+			Logger.getLogger(FanOutEngine.class.getName()).info("Invalid request: " + request);
+			return DeliveryOutcome.FAILED;
+		case 413:
+			Logger.getLogger(FanOutEngine.class.getName()).info("Payload size too large: " + request);
+			return DeliveryOutcome.FAILED;
+		default:
+			Logger.getLogger(FanOutEngine.class.getName())
+					.info("Unhandled status code: " + statusCode + " -> " + request);
+			return DeliveryOutcome.FAILED;
+		}
+	}
+
+	// the deliveries to one origin waiting to be admitted and for a window
+	private static final class OriginLane {
+
+		private final OriginThrottle throttle;
+
+		private final Semaphore window;
+
+		private final Queue<Waiting> waiting = new ConcurrentLinkedQueue<>();
+
+		private final AtomicInteger draining = new AtomicInteger();
+
+		// true while the lane is in the queue of the lanes stalled on the global window
+		private final AtomicBoolean stalled = new AtomicBoolean();
+
+		// true while the origin asked to wait, until a wake-up or the answer to a
+		// probe drains the lane
+		private volatile boolean parked;
+
+		private OriginLane(OriginThrottle throttle, int maxInFlight) {
+			this.throttle = throttle;
+			this.window = new Semaphore(maxInFlight);
+		}
+
+	}
+
+	// a delivery of a broadcast, prepared once it is admitted, or an attempt taken
+	// from the retry queue
+	private static final class Waiting {
+
+		private final PushEndpoint endpoint;
+
+		private final String broadcastId;
+
+		private final Subscription subscription;
+
+		private final DeliveryPreparer preparer;
+
+		// null until the delivery of a broadcast is prepared
+		private volatile DeliveryTask task;
+
+		// only read and written by the thread draining the lane
+		private boolean tokenReserved;
+
+		private final CompletableFuture<DeliveryOutcome> outcome = new CompletableFuture<>();
+
+		private Waiting(PushEndpoint endpoint, String broadcastId, Subscription subscription,
+				DeliveryPreparer preparer) {
+			this.endpoint = endpoint;
+			this.broadcastId = broadcastId;
+			this.subscription = subscription;
+			this.preparer = preparer;
+		}
+
+		private Waiting(PushEndpoint endpoint, DeliveryTask task) {
+			this(endpoint, task.getBroadcastId(), null, null);
+			this.task = task;
+			this.tokenReserved = task.isTokenReserved();
+		}
+
+		/**
+		 * @return the task to send, or null if the preparation failed
+		 */
+		private DeliveryTask prepare() {
+			if (this.task == null) {
+				byte[] body;
+				try {
+					body = this.preparer.prepare(this.subscription);
+				} catch (RuntimeException e) {
+					Logger.getLogger(FanOutEngine.class.getName()).info("Prepare delivery" + e);
+					return null;
+				}
+				if (body != null) {
+					this.task = new DeliveryTask(this.broadcastId, this.subscription.getEndpoint(), body, 0);
+				}
+			}
+			return this.task;
+		}
+
+	}
+
+}
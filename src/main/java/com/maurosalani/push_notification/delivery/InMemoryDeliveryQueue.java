@@ -0,0 +1,89 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery queue kept in the memory of the application, for a single instance
+ * and for tests. Its tasks are lost on restart.
+ */
+public class InMemoryDeliveryQueue implements DeliveryQueue {
+
+	private final DelayQueue<ScheduledTask> scheduled = new DelayQueue<>();
+
+	private final Queue<DeliveryTask> deadLetters = new ConcurrentLinkedQueue<>();
+
+	@Override
+	public void schedule(DeliveryTask task, long delayMillis) {
+		this.scheduled.put(new ScheduledTask(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+	}
+
+	@Override
+	public List<DeliveryTask> poll(int maxTasks, long timeoutMillis) throws InterruptedException {
+		List<DeliveryTask> tasks = new ArrayList<>();
+		ScheduledTask first = this.scheduled.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return tasks;
+		}
+		tasks.add(first.task);
+		List<ScheduledTask> due = new ArrayList<>();
+		this.scheduled.drainTo(due, maxTasks - 1);
+		for (ScheduledTask scheduledTask : due) {
+			tasks.add(scheduledTask.task);
+		}
+		return tasks;
+	}
+
+	@Override
+	public void complete(DeliveryTask task) {
+		// nothing survives a restart anyway
+	}
+
+	@Override
+	public void deadLetter(DeliveryTask task) {
+		this.deadLetters.add(task);
+	}
+
+	@Override
+	public int size() {
+		return this.scheduled.size();
+	}
+
+	@Override
+	public int getDeadLetterCount() {
+		return this.deadLetters.size();
+	}
+
+	public List<DeliveryTask> getDeadLetters() {
+		return new ArrayList<>(this.deadLetters);
+	}
+
+	private static final class ScheduledTask implements Delayed {
+
+		private final DeliveryTask task;
+
+		private final long dueAt;
+
+		private ScheduledTask(DeliveryTask task, long dueAt) {
+			this.task = task;
+			this.dueAt = dueAt;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(this.dueAt, ((ScheduledTask) other).dueAt);
+		}
+
+	}
+
+}
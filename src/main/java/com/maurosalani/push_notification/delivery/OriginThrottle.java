@@ -0,0 +1,257 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests to one push service origin and stops sending to it while
+ * it is failing, without affecting the other origins.
+ *
+ * The pace is a token bucket whose rate is halved on every 429 and grows back
+ * by one request per second on every success. A Retry-After header pauses the
+ * origin for the requested time. After a number of consecutive failures the
+ * circuit opens and no request is sent until the open time elapses; then a
+ * single probe request decides whether it closes again or stays open for twice
+ * as long.
+ */
+public class OriginThrottle {
+
+	public enum CircuitState {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * What the caller has to do with a request to the origin
+	 */
+	public static final class Admission {
+
+		public enum Wait {
+			// the request took a token that is not available yet
+			RATE_LIMITED,
+			// the origin asked to wait, or a probe is being sent
+			PAUSED,
+			// the origin is failing
+			CIRCUIT_OPEN
+		}
+
+		static final Admission SEND = new Admission(0, null);
+
+		private final long delayMillis;
+
+		private final Wait wait;
+
+		private Admission(long delayMillis, Wait wait) {
+			this.delayMillis = delayMillis;
+			this.wait = wait;
+		}
+
+		public boolean isSend() {
+			return this.wait == null;
+		}
+
+		/**
+		 * @return the time to wait before sending
+		 */
+		public long getDelayMillis() {
+			return this.delayMillis;
+		}
+
+		/**
+		 * @return why the request has to wait, or null if it can be sent
+		 */
+		public Wait getWait() {
+			return this.wait;
+		}
+
+	}
+
+	// time the probe request of a half open circuit is waited for
+	private static final long PROBE_TIMEOUT_MILLIS = 10_000;
+
+	private final String origin;
+
+	private final double maxRate;
+
+	private final double minRate;
+
+	private final double burst;
+
+	private final int failureThreshold;
+
+	private final long openMillis;
+
+	private final long maxOpenMillis;
+
+	// requests per second
+	private double rate;
+
+	private double tokens;
+
+	private long refilledAt = System.nanoTime();
+
+	private long pausedUntil;
+
+	private CircuitState state = CircuitState.CLOSED;
+
+	private int consecutiveFailures;
+
+	private long currentOpenMillis;
+
+	private long openUntil;
+
+	private long probeSentAt;
+
+	private long throttled;
+
+	private long deferred;
+
+	private long opened;
+
+	public OriginThrottle(String origin, double maxRate, double minRate, double burst, int failureThreshold,
+			long openMillis) {
+		this.origin = origin;
+		this.maxRate = maxRate;
+		this.minRate = minRate;
+		this.burst = burst;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		this.maxOpenMillis = openMillis * 32;
+		this.rate = maxRate;
+		this.tokens = burst;
+		this.currentOpenMillis = openMillis;
+	}
+
+	/**
+	 * Decides whether a request can be sent now. A request that already waited
+	 * for its token does not take another one.
+	 */
+	public synchronized Admission admit(boolean tokenReserved) {
+		long now = System.currentTimeMillis();
+		switch (this.state) {
+		case OPEN:
+			if (now < this.openUntil) {
+				return defer(this.openUntil - now, Admission.Wait.CIRCUIT_OPEN);
+			}
+			this.state = CircuitState.HALF_OPEN;
+			this.probeSentAt = now;
+			return Admission.SEND;
+		case HALF_OPEN:
+			if (now - this.probeSentAt < PROBE_TIMEOUT_MILLIS) {
+				return defer(PROBE_TIMEOUT_MILLIS - (now - this.probeSentAt), Admission.Wait.PAUSED);
+			}
+			// the probe never answered, send another one
+			this.probeSentAt = now;
+			return Admission.SEND;
+		default:
+			break;
+		}
+		if (now < this.pausedUntil) {
+			return defer(this.pausedUntil - now, Admission.Wait.PAUSED);
+		}
+		if (tokenReserved) {
+			return Admission.SEND;
+		}
+		refill();
+		// the token is taken even when it is not there yet, so the waiting requests
+		// are spread at the pace of the bucket instead of all coming back together
+		this.tokens -= 1;
+		if (this.tokens >= 0) {
+			return Admission.SEND;
+		}
+		return defer((long) Math.ceil(-this.tokens * 1000 / this.rate), Admission.Wait.RATE_LIMITED);
+	}
+
+	public synchronized void onSuccess() {
+		this.consecutiveFailures = 0;
+		if (this.state != CircuitState.CLOSED) {
+			this.state = CircuitState.CLOSED;
+			this.currentOpenMillis = this.openMillis;
+		}
+		this.rate = Math.min(this.maxRate, this.rate + 1);
+	}
+
+	/**
+	 * The origin answered 429
+	 *
+	 * @param retryAfterMillis the delay requested by the origin, or -1
+	 */
+	public synchronized void onThrottled(long retryAfterMillis) {
+		this.throttled++;
+		refill();
+		this.rate = Math.max(this.minRate, this.rate / 2);
+		this.tokens = Math.min(this.tokens, 0);
+		if (retryAfterMillis > 0) {
+			this.pausedUntil = Math.max(this.pausedUntil, System.currentTimeMillis() + retryAfterMillis);
+		}
+		if (this.state == CircuitState.HALF_OPEN) {
+			this.state = CircuitState.CLOSED;
+		}
+	}
+
+	/**
+	 * The request failed because of the network or a 5xx
+	 */
+	public synchronized void onFailure() {
+		this.consecutiveFailures++;
+		if (this.state == CircuitState.HALF_OPEN) {
+			this.currentOpenMillis = Math.min(this.maxOpenMillis, this.currentOpenMillis * 2);
+			open();
+		} else if (this.state == CircuitState.CLOSED && this.consecutiveFailures >= this.failureThreshold) {
+			open();
+		}
+	}
+
+	public String getOrigin() {
+		return this.origin;
+	}
+
+	public synchronized CircuitState getState() {
+		return this.state;
+	}
+
+	/**
+	 * @return the current limit, in requests per second
+	 */
+	public synchronized double getRate() {
+		return this.rate;
+	}
+
+	/**
+	 * @return the number of 429 answers of the origin
+	 */
+	public synchronized long getThrottled() {
+		return this.throttled;
+	}
+
+	/**
+	 * @return the number of requests that were not sent immediately
+	 */
+	public synchronized long getDeferred() {
+		return this.deferred;
+	}
+
+	/**
+	 * @return how many times the circuit opened
+	 */
+	public synchronized long getOpened() {
+		return this.opened;
+	}
+
+	private void open() {
+		this.state = CircuitState.OPEN;
+		this.openUntil = System.currentTimeMillis() + this.currentOpenMillis;
+		this.opened++;
+	}
+
+	private Admission defer(long delayMillis, Admission.Wait wait) {
+		this.deferred++;
+		return new Admission(Math.max(1, delayMillis), wait);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		double elapsedSeconds = (now - this.refilledAt) / (double) TimeUnit.SECONDS.toNanos(1);
+		this.tokens = Math.min(this.burst, this.tokens + elapsedSeconds * this.rate);
+		this.refilledAt = now;
+	}
+
+}
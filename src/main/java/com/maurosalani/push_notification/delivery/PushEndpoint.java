@@ -0,0 +1,67 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * The endpoint of a subscription, parsed once and reused for every message
+ * sent to it
+ */
+public final class PushEndpoint {
+
+	private final URI uri;
+
+	private final String origin;
+
+	private PushEndpoint(URI uri, String origin) {
+		this.uri = uri;
+		this.origin = origin;
+	}
+
+	/**
+	 * @throws MalformedURLException if the endpoint is not an http or https URL,
+	 *                               so the subscription can be removed
+	 */
+	public static PushEndpoint parse(String endpoint) throws MalformedURLException {
+		URI uri;
+		try {
+			uri = new URI(endpoint);
+		} catch (URISyntaxException e) {
+			MalformedURLException malformed = new MalformedURLException(e.getMessage());
+			malformed.initCause(e);
+			throw malformed;
+		}
+		String scheme = uri.getScheme();
+		if (uri.getHost() == null || !("https".equalsIgnoreCase(scheme) || "http".equalsIgnoreCase(scheme))) {
+			throw new MalformedURLException("Not a push endpoint: " + endpoint);
+		}
+		String origin = scheme.toLowerCase() + "://" + uri.getHost().toLowerCase();
+		if (uri.getPort() != -1 && uri.getPort() != defaultPort(scheme)) {
+			origin += ":" + uri.getPort();
+		}
+		return new PushEndpoint(uri, origin);
+	}
+
+	private static int defaultPort(String scheme) {
+		return "https".equalsIgnoreCase(scheme) ? 443 : 80;
+	}
+
+	public URI getUri() {
+		return this.uri;
+	}
+
+	/**
+	 * @return scheme, host and port of the push service, the audience of its
+	 *         VAPID token
+	 */
+	public String getOrigin() {
+		return this.origin;
+	}
+
+	@Override
+	public String toString() {
+		return this.uri.toString();
+	}
+
+}
@@ -0,0 +1,13 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.net.http.HttpRequest;
+
+/**
+ * Builds the request that sends an encrypted message to a push service
+ */
+@FunctionalInterface
+public interface PushRequestFactory {
+
+	HttpRequest create(PushEndpoint endpoint, byte[] body);
+
+}
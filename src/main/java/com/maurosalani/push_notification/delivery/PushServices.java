@@ -0,0 +1,65 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The hosts of the push services the subscriptions may point to. Every origin
+ * costs HTTP clients, a throttle and metrics, so an endpoint of another host is
+ * refused when it is subscribed and never sent to.
+ */
+public final class PushServices {
+
+	private final Set<String> hosts = new HashSet<>();
+
+	/**
+	 * @param hosts the hosts allowed, each with its subdomains; none allows any
+	 *              host
+	 */
+	public PushServices(Collection<String> hosts) {
+		for (String host : hosts) {
+			if (!host.trim().isEmpty()) {
+				this.hosts.add(host.trim().toLowerCase());
+			}
+		}
+	}
+
+	public static PushServices any() {
+		return new PushServices(Collections.emptyList());
+	}
+
+	public boolean allows(PushEndpoint endpoint) {
+		if (this.hosts.isEmpty()) {
+			return true;
+		}
+		String host = endpoint.getUri().getHost().toLowerCase();
+		while (!this.hosts.contains(host)) {
+			int dot = host.indexOf('.');
+			if (dot < 0) {
+				return false;
+			}
+			host = host.substring(dot + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the endpoint is not valid or its host
+	 *                                  is not allowed
+	 */
+	public void check(String endpoint) {
+		PushEndpoint parsed;
+		try {
+			parsed = PushEndpoint.parse(endpoint);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("invalid endpoint: " + e.getMessage());
+		}
+		if (!allows(parsed)) {
+			throw new IllegalArgumentException("not an allowed push service: " + parsed.getOrigin());
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.maurosalani.push_notification.cache.ExpiringLruCache;
+
+/**
+ * Sends the requests to the push services. Each origin has its own few
+ * clients, each holding one connection on which HTTP/2 multiplexes the
+ * concurrent requests, and the requests are spread over them in turn. All the
+ * clients share one executor, so the number of threads does not grow with the
+ * origins, and only the origins of the allowed {@link PushServices} get
+ * clients.
+ */
+public class PushTransport {
+
+	private final HttpClient.Version version;
+
+	private final Duration connectTimeout;
+
+	private final Duration requestTimeout;
+
+	private final int clientsPerOrigin;
+
+	private final ExecutorService executor;
+
+	private final Map<String, OriginClients> clients = new ConcurrentHashMap<>();
+
+	private final ExpiringLruCache<String, PushEndpoint> endpoints;
+
+	private final PushServices pushServices;
+
+	public PushTransport(HttpClient.Version version, Duration connectTimeout, Duration requestTimeout,
+			int clientsPerOrigin, int executorThreads, int endpointCacheSize, Duration endpointCacheTtl) {
+		this(version, connectTimeout, requestTimeout, clientsPerOrigin, executorThreads, endpointCacheSize,
+				endpointCacheTtl, PushServices.any());
+	}
+
+	/**
+	 * @param executorThreads threads handling the responses, or 0 for the default
+	 *                        executor of each client
+	 */
+	public PushTransport(HttpClient.Version version, Duration connectTimeout, Duration requestTimeout,
+			int clientsPerOrigin, int executorThreads, int endpointCacheSize, Duration endpointCacheTtl,
+			PushServices pushServices) {
+		this.version = version;
+		this.connectTimeout = connectTimeout;
+		this.requestTimeout = requestTimeout;
+		this.clientsPerOrigin = Math.max(1, clientsPerOrigin);
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = executorThreads > 0 ? Executors.newFixedThreadPool(executorThreads, runnable -> {
+			Thread thread = new Thread(runnable, "push-transport-" + threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		this.endpoints = new ExpiringLruCache<>(endpointCacheSize, endpointCacheTtl);
+		this.pushServices = pushServices;
+	}
+
+	/**
+	 * @return the parsed endpoint, from the cache if it was parsed before
+	 * @throws MalformedURLException if the endpoint is not valid
+	 */
+	public PushEndpoint endpoint(String endpoint) throws MalformedURLException {
+		PushEndpoint parsed = this.endpoints.get(endpoint);
+		if (parsed == null) {
+			parsed = PushEndpoint.parse(endpoint);
+			this.endpoints.put(endpoint, parsed);
+		}
+		return parsed;
+	}
+
+	/**
+	 * @return true if the endpoint belongs to an allowed push service
+	 */
+	public boolean allows(PushEndpoint endpoint) {
+		return this.pushServices.allows(endpoint);
+	}
+
+	/**
+	 * @return a builder of a request to the endpoint, with the request timeout
+	 */
+	public HttpRequest.Builder newRequest(PushEndpoint endpoint) {
+		return HttpRequest.newBuilder(endpoint.getUri()).timeout(this.requestTimeout);
+	}
+
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(PushEndpoint endpoint, HttpRequest request,
+			HttpResponse.BodyHandler<T> bodyHandler) {
+		if (!allows(endpoint)) {
+			CompletableFuture<HttpResponse<T>> refused = new CompletableFuture<>();
+			refused.completeExceptionally(
+					new IllegalArgumentException("not an allowed push service: " + endpoint.getOrigin()));
+			return refused;
+		}
+		return this.clients.computeIfAbsent(endpoint.getOrigin(), origin -> new OriginClients()).next()
+				.sendAsync(request, bodyHandler);
+	}
+
+	/**
+	 * Sends the request and waits for the answer on the calling thread
+	 */
+	public <T> HttpResponse<T> send(PushEndpoint endpoint, HttpRequest request,
+			HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+		if (!allows(endpoint)) {
+			throw new IllegalArgumentException("not an allowed push service: " + endpoint.getOrigin());
+		}
+		return this.clients.computeIfAbsent(endpoint.getOrigin(), origin -> new OriginClients()).next()
+				.send(request, bodyHandler);
+	}
+
+	/**
+	 * @return the number of origins with open clients
+	 */
+	public int getOriginCount() {
+		return this.clients.size();
+	}
+
+	public void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+		}
+	}
+
+	private HttpClient newClient() {
+		HttpClient.Builder builder = HttpClient.newBuilder().version(this.version)
+				.connectTimeout(this.connectTimeout);
+		if (this.executor != null) {
+			builder.executor(this.executor);
+		}
+		return builder.build();
+	}
+
+	private final class OriginClients {
+
+		private final HttpClient[] originClients = new HttpClient[clientsPerOrigin];
+
+		private final AtomicInteger turn = new AtomicInteger();
+
+		private OriginClients() {
+			for (int i = 0; i < this.originClients.length; i++) {
+				this.originClients[i] = newClient();
+			}
+		}
+
+		private HttpClient next() {
+			return this.originClients[Math.floorMod(this.turn.getAndIncrement(), this.originClients.length)];
+		}
+
+	}
+
+}
@@ -0,0 +1,200 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.redisson.api.RBlockingQueue;
+import org.redisson.api.RDelayedQueue;
+import org.redisson.api.RList;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RScript;
+import org.redisson.api.RScript.Mode;
+import org.redisson.api.RScript.ReturnType;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Delivery queue shared by every instance of the application through Redis.
+ * Due tasks are kept in a list that the workers pop; delayed tasks are moved
+ * to it by Redisson when their delay elapses. Dead letters are kept in a sorted
+ * set ordered by the time they were added.
+ * <p>
+ * A polled task is moved to a processing list of the instance and removed from
+ * it when its attempt is over. Every instance refreshes the time of its list in
+ * a registry, and gives back to the due list the tasks of the instances that
+ * stopped doing so, its own previous run included.
+ */
+public class RedisDeliveryQueue implements DeliveryQueue {
+
+	private static final String DELIVERY_QUEUE = "delivery_queue";
+	private static final String DELIVERY_DEAD_LETTER = "delivery_dead_letter";
+	// the hash tag keeps them in the slot of the due list, which the scripts
+	// below use together with them
+	private static final String DELIVERY_PROCESSING = "delivery_processing:{" + DELIVERY_QUEUE + "}:";
+	private static final String DELIVERY_PROCESSING_LISTS = "delivery_processing_lists:{" + DELIVERY_QUEUE + "}";
+	private static final long HEARTBEAT_MILLIS = 10_000;
+	// heartbeats an instance can miss before its tasks are given back
+	private static final int MISSED_HEARTBEATS = 6;
+
+	// KEYS[1] due list, KEYS[2] processing list; ARGV[1] maximum number of tasks
+	private static final String POLL_SCRIPT = "local tasks = {}; "
+			+ "for i = 1, tonumber(ARGV[1]) do local task = redis.call('lpop', KEYS[1]); "
+			+ "if not task then break; end; redis.call('rpush', KEYS[2], task); tasks[i] = task; end; "
+			+ "return tasks;";
+
+	// KEYS[1] processing list of a stopped instance, KEYS[2] due list, KEYS[3]
+	// registry; ARGV[1] name of the processing list. The tasks go back to the
+	// head of the due list in their order.
+	private static final String REQUEUE_SCRIPT = "local requeued = 0; "
+			+ "while redis.call('rpoplpush', KEYS[1], KEYS[2]) do requeued = requeued + 1; end; "
+			+ "redis.call('zrem', KEYS[3], ARGV[1]); " + "return requeued;";
+
+	private final RBlockingQueue<String> dueTasks;
+
+	private final RDelayedQueue<String> delayedTasks;
+
+	private final RScoredSortedSet<String> deadLetters;
+
+	private final String processingName;
+
+	private final RList<String> processing;
+
+	private final RScoredSortedSet<String> processingLists;
+
+	private final RScript script;
+
+	// what was read from Redis for each task being attempted, to remove it
+	// from the processing list as it is
+	private final Map<DeliveryTask, String> polled = Collections.synchronizedMap(new IdentityHashMap<>());
+
+	private final long staleMillis;
+
+	private final ScheduledExecutorService heartbeat;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	public RedisDeliveryQueue(RedissonClient redisson) {
+		this(redisson, HEARTBEAT_MILLIS);
+	}
+
+	RedisDeliveryQueue(RedissonClient redisson, long heartbeatMillis) {
+		this.dueTasks = redisson.getBlockingQueue(DELIVERY_QUEUE, StringCodec.INSTANCE);
+		this.delayedTasks = redisson.getDelayedQueue(this.dueTasks);
+		this.deadLetters = redisson.getScoredSortedSet(DELIVERY_DEAD_LETTER, StringCodec.INSTANCE);
+		this.processingName = DELIVERY_PROCESSING + UUID.randomUUID();
+		this.processing = redisson.getList(this.processingName, StringCodec.INSTANCE);
+		this.processingLists = redisson.getScoredSortedSet(DELIVERY_PROCESSING_LISTS, StringCodec.INSTANCE);
+		this.script = redisson.getScript(StringCodec.INSTANCE);
+		this.staleMillis = heartbeatMillis * MISSED_HEARTBEATS;
+		beat();
+		this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread beat = new Thread(runnable, "delivery-queue-heartbeat");
+			beat.setDaemon(true);
+			return beat;
+		});
+		this.heartbeat.scheduleWithFixedDelay(this::beat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void schedule(DeliveryTask task, long delayMillis) {
+		if (delayMillis <= 0) {
+			this.dueTasks.add(write(task));
+		} else {
+			this.delayedTasks.offer(write(task), delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public List<DeliveryTask> poll(int maxTasks, long timeoutMillis) throws InterruptedException {
+		List<String> tasks = this.script.eval(DELIVERY_QUEUE, Mode.READ_WRITE, POLL_SCRIPT, ReturnType.MULTI,
+				Arrays.asList(DELIVERY_QUEUE, this.processingName), String.valueOf(maxTasks));
+		if (tasks.isEmpty()) {
+			// nothing due, wait for the next one; it comes from the tail, which
+			// only matters when it is not the only one
+			String task = this.dueTasks.pollLastAndOfferFirstTo(this.processingName, timeoutMillis,
+					TimeUnit.MILLISECONDS);
+			tasks = task == null ? Collections.emptyList() : Collections.singletonList(task);
+		}
+		List<DeliveryTask> read = new ArrayList<>(tasks.size());
+		for (String task : tasks) {
+			try {
+				DeliveryTask deliveryTask = this.objectMapper.readValue(task, DeliveryTask.class);
+				this.polled.put(deliveryTask, task);
+				read.add(deliveryTask);
+			} catch (IOException e) {
+				Logger.getLogger(RedisDeliveryQueue.class.getName()).info("read delivery task" + e);
+				this.processing.remove(task);
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public void complete(DeliveryTask task) {
+		String polledTask = this.polled.remove(task);
+		if (polledTask != null) {
+			this.processing.remove(polledTask);
+		}
+	}
+
+	@Override
+	public void deadLetter(DeliveryTask task) {
+		this.deadLetters.add(System.currentTimeMillis(), write(task));
+	}
+
+	@Override
+	public int size() {
+		return this.dueTasks.size() + this.delayedTasks.size();
+	}
+
+	@Override
+	public int getDeadLetterCount() {
+		return this.deadLetters.size();
+	}
+
+	/**
+	 * Stops the heartbeat; the tasks still being attempted are given back by
+	 * the other instances once it is late
+	 */
+	public void shutdown() {
+		this.heartbeat.shutdownNow();
+	}
+
+	private void beat() {
+		try {
+			long now = System.currentTimeMillis();
+			this.processingLists.add(now, this.processingName);
+			for (String stale : this.processingLists.valueRange(0, true, now - this.staleMillis, false)) {
+				Long requeued = this.script.eval(DELIVERY_QUEUE, Mode.READ_WRITE, REQUEUE_SCRIPT, ReturnType.INTEGER,
+						Arrays.asList(stale, DELIVERY_QUEUE, DELIVERY_PROCESSING_LISTS), stale);
+				Logger.getLogger(RedisDeliveryQueue.class.getName())
+						.info("requeued " + requeued + " delivery tasks of " + stale);
+			}
+		} catch (RuntimeException e) {
+			Logger.getLogger(RedisDeliveryQueue.class.getName()).info("delivery queue heartbeat" + e);
+		}
+	}
+
+	private String write(DeliveryTask task) {
+		try {
+			return this.objectMapper.writeValueAsString(task);
+		} catch (JsonProcessingException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.maurosalani.push_notification.delivery;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed delivery is attempted again. Delays grow
+ * exponentially with the attempts and are jittered, so the retries of a large
+ * broadcast are spread instead of hitting the push service together.
+ */
+public class RetryPolicy {
+
+	private final int maxAttempts;
+
+	private final long baseDelayMillis;
+
+	private final long maxDelayMillis;
+
+	public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelay.toMillis();
+		this.maxDelayMillis = maxDelay.toMillis();
+	}
+
+	public boolean canRetry(DeliveryTask task) {
+		return task.getAttempt() + 1 < this.maxAttempts;
+	}
+
+	/**
+	 * @param retryAfterMillis the delay requested by the push service, or -1
+	 * @return the delay before the next attempt of the task
+	 */
+	public long delayMillis(DeliveryTask task, long retryAfterMillis) {
+		if (retryAfterMillis >= 0) {
+			return retryAfterMillis;
+		}
+		int shift = Math.min(task.getAttempt(), 30);
+		long delay = Math.min(this.maxDelayMillis, this.baseDelayMillis << shift);
+		// half of the delay is fixed, so retries are never immediate
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * Parses a Retry-After header, either a number of seconds or an HTTP date
+	 *
+	 * @return the delay in milliseconds, or -1 if the header is missing or not
+	 *         valid
+	 */
+	public static long retryAfterMillis(String retryAfter, long nowMillis) {
+		if (retryAfter == null) {
+			return -1;
+		}
+		String value = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// not a number of seconds
+		}
+		try {
+			long at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return Math.max(0, at - nowMillis);
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.maurosalani.push_notification.dto;
+
+import com.maurosalani.push_notification.delivery.BroadcastReport;
+
+/**
+ * Progress of a broadcast, as returned to the publisher
+ */
+public class BroadcastStatus {
+	private final String broadcastId;
+
+	private final boolean completed;
+
+	private final int sent;
+
+	private final int failed;
+
+	private final int removed;
+
+	private final int retrying;
+
+	private final long elapsedMillis;
+
+	private BroadcastStatus(BroadcastReport report) {
+		this.broadcastId = report.getBroadcastId();
+		this.completed = report.isCompleted();
+		this.sent = report.getSent();
+		this.failed = report.getFailed();
+		this.removed = report.getRemoved();
+		this.retrying = report.getRetrying();
+		this.elapsedMillis = report.getElapsedMillis();
+	}
+
+	public static BroadcastStatus of(BroadcastReport report) {
+		return new BroadcastStatus(report);
+	}
+
+	public String getBroadcastId() {
+		return this.broadcastId;
+	}
+
+	/**
+	 * @return true when every subscriber had its first attempt; retried
+	 *         deliveries may still be running
+	 */
+	public boolean isCompleted() {
+		return this.completed;
+	}
+
+	public int getSent() {
+		return this.sent;
+	}
+
+	public int getFailed() {
+		return this.failed;
+	}
+
+	public int getRemoved() {
+		return this.removed;
+	}
+
+	public int getRetrying() {
+		return this.retrying;
+	}
+
+	public long getElapsedMillis() {
+		return this.elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "BroadcastStatus [broadcastId=" + this.broadcastId + ", completed=" + this.completed + ", sent="
+				+ this.sent + ", failed=" + this.failed + ", removed=" + this.removed + ", retrying=" + this.retrying
+				+ ", elapsedMillis=" + this.elapsedMillis + "]";
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.maurosalani.push_notification.dto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk import of subscriptions, with the lines that were not
+ * imported
+ */
+public class ImportReport {
+
+	/**
+	 * A line of the import that was rejected, numbered from 1
+	 */
+	public static class LineError {
+
+		private final long line;
+
+		private final String message;
+
+		public LineError(long line, String message) {
+			this.line = line;
+			this.message = message;
+		}
+
+		public long getLine() {
+			return this.line;
+		}
+
+		public String getMessage() {
+			return this.message;
+		}
+
+		@Override
+		public String toString() {
+			return "LineError [line=" + this.line + ", message=" + this.message + "]";
+		}
+
+	}
+
+	// errors beyond this are only counted, so a wrong file does not fill the
+	// memory with its report
+	private static final int MAX_ERRORS = 1000;
+
+	private long imported;
+
+	private long failed;
+
+	private final List<LineError> errors = new ArrayList<>();
+
+	public void addImported(int count) {
+		this.imported += count;
+	}
+
+	public void addError(long line, String message) {
+		this.failed++;
+		if (this.errors.size() < MAX_ERRORS) {
+			this.errors.add(new LineError(line, message));
+		}
+	}
+
+	public long getImported() {
+		return this.imported;
+	}
+
+	public long getFailed() {
+		return this.failed;
+	}
+
+	/**
+	 * @return the first rejected lines
+	 */
+	public List<LineError> getErrors() {
+		return Collections.unmodifiableList(this.errors);
+	}
+
+	@Override
+	public String toString() {
+		return "ImportReport [imported=" + this.imported + ", failed=" + this.failed + ", errors=" + this.errors
+				+ "]";
+	}
+
+}
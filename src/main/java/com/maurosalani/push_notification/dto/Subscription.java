@@ -44,6 +44,15 @@ public class Subscription implements Serializable{
 		return this.keys;
 	}
 
+	/**
+	 * @param now milliseconds since the epoch
+	 * @return true if the subscription has an expiration time that is not after
+	 *         now
+	 */
+	public boolean isExpired(long now) {
+		return this.expirationTime != null && this.expirationTime <= now;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,30 @@
+package com.maurosalani.push_notification.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class TopicMessage {
+	private final String topic;
+
+	private final String message;
+
+	@JsonCreator
+	public TopicMessage(@JsonProperty("topic") String topic, @JsonProperty("message") String message) {
+		this.topic = topic;
+		this.message = message;
+	}
+
+	public String getTopic() {
+		return this.topic;
+	}
+
+	public String getMessage() {
+		return this.message;
+	}
+
+	@Override
+	public String toString() {
+		return "TopicMessage [topic=" + this.topic + ", message=" + this.message + "]";
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.maurosalani.push_notification.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class TopicSubscription {
+	private final String username;
+
+	private final String topic;
+
+	@JsonCreator
+	public TopicSubscription(@JsonProperty("username") String username, @JsonProperty("topic") String topic) {
+		this.username = username;
+		this.topic = topic;
+	}
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	public String getTopic() {
+		return this.topic;
+	}
+
+	@Override
+	public String toString() {
+		return "TopicSubscription [username=" + this.username + ", topic=" + this.topic + "]";
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.maurosalani.push_notification.repository;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Removes from the store, in background, the subscriptions whose expiration
+ * time has passed. Every run removes them in batches of at most batchSize,
+ * each one a separate request, so the store is never busy with a long removal.
+ */
+public class ExpirationSweeper {
+
+	private final SubscriptionStore store;
+
+	private final int batchSize;
+
+	private final Consumer<Collection<String>> removedEndpoints;
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param removedEndpoints called with the endpoints of every batch removed
+	 */
+	public ExpirationSweeper(SubscriptionStore store, Duration interval, int batchSize,
+			Consumer<Collection<String>> removedEndpoints) {
+		this.store = store;
+		this.batchSize = batchSize;
+		this.removedEndpoints = removedEndpoints;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread sweeper = new Thread(runnable, "expiration-sweeper");
+			sweeper.setDaemon(true);
+			return sweeper;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::run, interval.toMillis(), interval.toMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Removes the subscriptions expired until now, one batch after the other
+	 *
+	 * @return the number of subscriptions removed
+	 */
+	public long sweep() {
+		long now = System.currentTimeMillis();
+		long removed = 0;
+		ExpiredBatch batch;
+		do {
+			batch = this.store.unregisterExpired(now, this.batchSize);
+			if (!batch.getRemoved().isEmpty()) {
+				this.removedEndpoints.accept(batch.getRemoved());
+				removed += batch.getRemoved().size();
+			}
+			// a full batch may be followed by others, even if some of its entries
+			// were already unregistered
+		} while (batch.getScanned() == this.batchSize && !Thread.currentThread().isInterrupted());
+		return removed;
+	}
+
+	public void shutdown() {
+		this.scheduler.shutdownNow();
+	}
+
+	private void run() {
+		try {
+			long removed = sweep();
+			if (removed > 0) {
+				Logger.getLogger(ExpirationSweeper.class.getName()).info("Removed " + removed + " expired subscriptions");
+			}
+		} catch (RuntimeException e) {
+			// the store is not reachable, the next run tries again
+			Logger.getLogger(ExpirationSweeper.class.getName()).info("sweep expired subscriptions" + e);
+		}
+	}
+
+}
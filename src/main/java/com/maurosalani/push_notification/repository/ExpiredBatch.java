@@ -0,0 +1,35 @@
+package com.maurosalani.push_notification.repository;
+
+import java.util.Collection;
+
+/**
+ * One batch taken from the index of the expiration times: the entries read
+ * from it and the endpoints actually unregistered, fewer when some of them had
+ * already been unregistered
+ */
+public class ExpiredBatch {
+
+	private final int scanned;
+
+	private final Collection<String> removed;
+
+	public ExpiredBatch(int scanned, Collection<String> removed) {
+		this.scanned = scanned;
+		this.removed = removed;
+	}
+
+	/**
+	 * @return the number of entries of the index read and dropped
+	 */
+	public int getScanned() {
+		return this.scanned;
+	}
+
+	/**
+	 * @return the endpoints unregistered
+	 */
+	public Collection<String> getRemoved() {
+		return this.removed;
+	}
+
+}
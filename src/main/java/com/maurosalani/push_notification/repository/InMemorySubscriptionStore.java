@@ -0,0 +1,472 @@
+package com.maurosalani.push_notification.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Keeps the subscriptions in the memory of a single instance of the
+ * application, for deployments without Redis and for benchmarks.
+ *
+ * Topics and usernames are interned to int ids, so the members of a topic and
+ * the topics of a user are compact sets of ints. The sets are guarded by
+ * striped locks: a lock of a user may be held while taking a lock of a topic,
+ * never the opposite. Ids are never reused, so the memory of a username or
+ * topic is kept after it is removed.
+ */
+public class InMemorySubscriptionStore implements SubscriptionStore {
+
+	private static final int STRIPES = 64;
+
+	private final Interner<User> users = new Interner<>(User::new);
+
+	private final Interner<Topic> topics = new Interner<>(Topic::new);
+
+	private final ConcurrentHashMap<String, String> endpointUsernames = new ConcurrentHashMap<>();
+
+	// the subscriptions with an expiration time, the first to expire first
+	private final ConcurrentSkipListSet<Expiration> expirations = new ConcurrentSkipListSet<>();
+
+	private final Object[] userLocks = newLocks();
+
+	private final Object[] topicLocks = newLocks();
+
+	@Override
+	public void subscribeUserToTopic(String topic, String username) {
+		User user = this.users.intern(username);
+		Topic topicEntry = this.topics.intern(topic);
+		synchronized (lockOf(user)) {
+			user.topics.add(topicEntry.id);
+			synchronized (lockOf(topicEntry)) {
+				topicEntry.members.add(user.id);
+			}
+		}
+	}
+
+	@Override
+	public void unsubscribeUserFromTopic(String topic, String username) {
+		User user = this.users.get(username);
+		Topic topicEntry = this.topics.get(topic);
+		if (user == null || topicEntry == null) {
+			return;
+		}
+		synchronized (lockOf(user)) {
+			user.topics.remove(topicEntry.id);
+			synchronized (lockOf(topicEntry)) {
+				topicEntry.members.remove(user.id);
+			}
+		}
+	}
+
+	@Override
+	public Collection<String> getAllUsernameFromTopic(String topic) {
+		List<String> usernames = new ArrayList<>();
+		for (int id : membersOf(topic)) {
+			usernames.add(this.users.byId(id).name);
+		}
+		return usernames;
+	}
+
+	@Override
+	public Collection<String> getAllTopicsFromUsername(String username) {
+		User user = this.users.get(username);
+		if (user == null) {
+			return new ArrayList<>();
+		}
+		int[] ids;
+		synchronized (lockOf(user)) {
+			ids = user.topics.toArray();
+		}
+		List<String> topicNames = new ArrayList<>(ids.length);
+		for (int id : ids) {
+			topicNames.add(this.topics.byId(id).name);
+		}
+		return topicNames;
+	}
+
+	/**
+	 * Iterates over a snapshot of the members of the topic taken when this method
+	 * is called; their subscriptions are read while iterating.
+	 */
+	@Override
+	public Iterator<Subscription> scanSubscriptionsFromTopic(String topic, int batchSize) {
+		int[] members = membersOf(topic);
+		return new Iterator<Subscription>() {
+
+			private int index;
+
+			private Iterator<Subscription> devices = Collections.emptyIterator();
+
+			private Subscription next = advance();
+
+			@Override
+			public boolean hasNext() {
+				return this.next != null;
+			}
+
+			@Override
+			public Subscription next() {
+				if (this.next == null) {
+					throw new NoSuchElementException();
+				}
+				Subscription current = this.next;
+				this.next = advance();
+				return current;
+			}
+
+			private Subscription advance() {
+				while (!this.devices.hasNext() && this.index < members.length) {
+					this.devices = users.byId(members[this.index++]).subscriptions.iterator();
+				}
+				return this.devices.hasNext() ? this.devices.next() : null;
+			}
+		};
+	}
+
+	@Override
+	public void unsubscribeUsernameFromAllTopics(String username) {
+		User user = this.users.get(username);
+		if (user == null) {
+			return;
+		}
+		synchronized (lockOf(user)) {
+			removeFromAllTopics(user);
+		}
+	}
+
+	@Override
+	public void registerUser(Subscription subscription) {
+		User user = this.users.intern(subscription.getUsername());
+		String endpoint = subscription.getEndpoint();
+		String previous;
+		synchronized (lockOf(user)) {
+			previous = this.endpointUsernames.put(endpoint, user.name);
+			unindex(user.putDevice(subscription));
+			index(subscription);
+		}
+		if (previous != null && !previous.equals(user.name)) {
+			// the lock of the other user is not held with this one
+			User owner = this.users.get(previous);
+			synchronized (lockOf(owner)) {
+				// unless it registered the endpoint again meanwhile
+				if (!owner.name.equals(this.endpointUsernames.get(endpoint))) {
+					Subscription moved = owner.removeDevice(endpoint);
+					// the same expiration is now indexed for the new user
+					if (moved != null && !Objects.equals(moved.getExpirationTime(), subscription.getExpirationTime())) {
+						unindex(moved);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> registerUsers(Collection<Subscription> subscriptions,
+			Map<String, ? extends Collection<String>> topicsByUsername) {
+		for (Subscription subscription : subscriptions) {
+			registerUser(subscription);
+		}
+		topicsByUsername.forEach((username, topicNames) -> {
+			for (String topic : topicNames) {
+				subscribeUserToTopic(topic, username);
+			}
+		});
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public void unregisterUserByEndpoint(String endpoint) {
+		unregisterEndpoint(endpoint);
+	}
+
+	@Override
+	public void unregisterUserByUsername(String username) {
+		User user = this.users.get(username);
+		if (user == null) {
+			return;
+		}
+		synchronized (lockOf(user)) {
+			for (Subscription subscription : user.subscriptions) {
+				this.endpointUsernames.remove(subscription.getEndpoint(), user.name);
+				unindex(subscription);
+			}
+			user.subscriptions = Collections.emptyList();
+			removeFromAllTopics(user);
+		}
+	}
+
+	@Override
+	public long unregisterUsersByEndpoints(Collection<String> endpoints) {
+		long removed = 0;
+		for (String endpoint : endpoints) {
+			if (unregisterEndpoint(endpoint)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	@Override
+	public ExpiredBatch unregisterExpired(long now, int limit) {
+		List<String> removed = new ArrayList<>();
+		int scanned = 0;
+		Iterator<Expiration> expirations = this.expirations.iterator();
+		while (scanned < limit && expirations.hasNext()) {
+			Expiration expiration = expirations.next();
+			if (expiration.time > now) {
+				break;
+			}
+			if (unregisterEndpoint(expiration.endpoint)) {
+				removed.add(expiration.endpoint);
+			}
+			// already gone if the endpoint was unregistered meanwhile
+			this.expirations.remove(expiration);
+			scanned++;
+		}
+		return new ExpiredBatch(scanned, removed);
+	}
+
+	@Override
+	public boolean isSubscribed(String endpoint) {
+		return this.endpointUsernames.containsKey(endpoint);
+	}
+
+	@Override
+	public Collection<Subscription> getSubscriptionsFromUsername(String username) {
+		User user = this.users.get(username);
+		return user == null ? Collections.emptyList() : user.subscriptions;
+	}
+
+	@Override
+	public Map<String, Collection<Subscription>> getSubscriptions(Collection<String> usernames) {
+		Map<String, Collection<Subscription>> subscriptions = new HashMap<>();
+		for (String username : usernames) {
+			Collection<Subscription> devices = getSubscriptionsFromUsername(username);
+			if (!devices.isEmpty()) {
+				subscriptions.put(username, devices);
+			}
+		}
+		return subscriptions;
+	}
+
+	private boolean unregisterEndpoint(String endpoint) {
+		String username = this.endpointUsernames.get(endpoint);
+		if (username == null) {
+			return false;
+		}
+		User user = this.users.get(username);
+		synchronized (lockOf(user)) {
+			// the endpoint may have been registered again meanwhile
+			if (!this.endpointUsernames.remove(endpoint, username)) {
+				return false;
+			}
+			unindex(user.removeDevice(endpoint));
+			if (user.subscriptions.isEmpty()) {
+				removeFromAllTopics(user);
+			}
+			return true;
+		}
+	}
+
+	private void index(Subscription subscription) {
+		if (subscription.getExpirationTime() != null) {
+			this.expirations.add(new Expiration(subscription.getExpirationTime(), subscription.getEndpoint()));
+		}
+	}
+
+	private void unindex(Subscription subscription) {
+		if (subscription != null && subscription.getExpirationTime() != null) {
+			this.expirations.remove(new Expiration(subscription.getExpirationTime(), subscription.getEndpoint()));
+		}
+	}
+
+	// called holding the lock of the user
+	private void removeFromAllTopics(User user) {
+		for (int id : user.topics.toArray()) {
+			Topic topic = this.topics.byId(id);
+			synchronized (lockOf(topic)) {
+				topic.members.remove(user.id);
+			}
+		}
+		user.topics.clear();
+	}
+
+	private int[] membersOf(String topic) {
+		Topic topicEntry = this.topics.get(topic);
+		if (topicEntry == null) {
+			return new int[0];
+		}
+		synchronized (lockOf(topicEntry)) {
+			return topicEntry.members.toArray();
+		}
+	}
+
+	private Object lockOf(User user) {
+		return this.userLocks[user.id & (STRIPES - 1)];
+	}
+
+	private Object lockOf(Topic topic) {
+		return this.topicLocks[topic.id & (STRIPES - 1)];
+	}
+
+	private static Object[] newLocks() {
+		Object[] locks = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+
+	private static final class User {
+
+		private final int id;
+
+		private final String name;
+
+		// one for each device; guarded by the lock of the user and replaced on
+		// every change, so it is read without it
+		private volatile List<Subscription> subscriptions = Collections.emptyList();
+
+		private final IntHashSet topics = new IntHashSet();
+
+		private User(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		/**
+		 * Called holding the lock of the user
+		 *
+		 * @return the subscription replaced, or null
+		 */
+		private Subscription putDevice(Subscription subscription) {
+			List<Subscription> devices = new ArrayList<>(this.subscriptions);
+			Subscription previous = remove(devices, subscription.getEndpoint());
+			devices.add(subscription);
+			this.subscriptions = Collections.unmodifiableList(devices);
+			return previous;
+		}
+
+		/**
+		 * Called holding the lock of the user
+		 *
+		 * @return the subscription removed, or null
+		 */
+		private Subscription removeDevice(String endpoint) {
+			List<Subscription> devices = new ArrayList<>(this.subscriptions);
+			Subscription removed = remove(devices, endpoint);
+			if (removed != null) {
+				this.subscriptions = Collections.unmodifiableList(devices);
+			}
+			return removed;
+		}
+
+		private static Subscription remove(List<Subscription> devices, String endpoint) {
+			for (Iterator<Subscription> iterator = devices.iterator(); iterator.hasNext();) {
+				Subscription device = iterator.next();
+				if (device.getEndpoint().equals(endpoint)) {
+					iterator.remove();
+					return device;
+				}
+			}
+			return null;
+		}
+
+	}
+
+	private static final class Topic {
+
+		private final int id;
+
+		private final String name;
+
+		private final IntHashSet members = new IntHashSet();
+
+		private Topic(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+	}
+
+	private static final class Expiration implements Comparable<Expiration> {
+
+		private final long time;
+
+		private final String endpoint;
+
+		private Expiration(long time, String endpoint) {
+			this.time = time;
+			this.endpoint = endpoint;
+		}
+
+		@Override
+		public int compareTo(Expiration other) {
+			int byTime = Long.compare(this.time, other.time);
+			return byTime != 0 ? byTime : this.endpoint.compareTo(other.endpoint);
+		}
+
+	}
+
+	/**
+	 * Assigns sequential ids to names and finds the entry of an id
+	 */
+	private static final class Interner<T> {
+
+		interface Factory<T> {
+			T create(int id, String name);
+		}
+
+		private final ConcurrentHashMap<String, T> byName = new ConcurrentHashMap<>();
+
+		private final Factory<T> factory;
+
+		private volatile Object[] byId = new Object[16];
+
+		private int nextId;
+
+		private Interner(Factory<T> factory) {
+			this.factory = factory;
+		}
+
+		T intern(String name) {
+			T entry = this.byName.get(name);
+			return entry != null ? entry : this.byName.computeIfAbsent(name, this::create);
+		}
+
+		T get(String name) {
+			return this.byName.get(name);
+		}
+
+		@SuppressWarnings("unchecked")
+		T byId(int id) {
+			return (T) this.byId[id];
+		}
+
+		private synchronized T create(String name) {
+			int id = this.nextId++;
+			T entry = this.factory.create(id, name);
+			Object[] entries = this.byId;
+			if (id == entries.length) {
+				entries = Arrays.copyOf(entries, entries.length * 2);
+			}
+			entries[id] = entry;
+			this.byId = entries;
+			return entry;
+		}
+
+	}
+
+}
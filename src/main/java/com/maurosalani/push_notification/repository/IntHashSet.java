@@ -0,0 +1,120 @@
+package com.maurosalani.push_notification.repository;
+
+import java.util.Arrays;
+
+/**
+ * Set of non negative ints stored in a single open addressing array, without
+ * boxing. Not thread safe.
+ */
+class IntHashSet {
+
+	private static final int EMPTY = -1;
+
+	private static final int MIN_CAPACITY = 4;
+
+	private int[] slots;
+
+	private int size;
+
+	IntHashSet() {
+		this.slots = newSlots(MIN_CAPACITY);
+	}
+
+	boolean add(int value) {
+		int slot = find(value);
+		if (this.slots[slot] == value) {
+			return false;
+		}
+		this.slots[slot] = value;
+		this.size++;
+		// load factor of 1/2 keeps the probe sequences short
+		if (this.size * 2 > this.slots.length) {
+			rehash(this.slots.length * 2);
+		}
+		return true;
+	}
+
+	boolean remove(int value) {
+		int slot = find(value);
+		if (this.slots[slot] != value) {
+			return false;
+		}
+		this.slots[slot] = EMPTY;
+		this.size--;
+		// the following entries of the probe sequence are moved back, so that no
+		// lookup stops at the removed slot
+		int mask = this.slots.length - 1;
+		for (int next = (slot + 1) & mask; this.slots[next] != EMPTY; next = (next + 1) & mask) {
+			int moved = this.slots[next];
+			this.slots[next] = EMPTY;
+			this.slots[find(moved)] = moved;
+		}
+		if (this.size * 8 < this.slots.length && this.slots.length > MIN_CAPACITY) {
+			rehash(this.slots.length / 2);
+		}
+		return true;
+	}
+
+	boolean contains(int value) {
+		return this.slots[find(value)] == value;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	void clear() {
+		this.slots = newSlots(MIN_CAPACITY);
+		this.size = 0;
+	}
+
+	int[] toArray() {
+		int[] values = new int[this.size];
+		int i = 0;
+		for (int value : this.slots) {
+			if (value != EMPTY) {
+				values[i++] = value;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return the slot holding the value, or the empty slot where it would go
+	 */
+	private int find(int value) {
+		int mask = this.slots.length - 1;
+		int slot = mix(value) & mask;
+		while (this.slots[slot] != EMPTY && this.slots[slot] != value) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		int[] old = this.slots;
+		this.slots = newSlots(capacity);
+		for (int value : old) {
+			if (value != EMPTY) {
+				this.slots[find(value)] = value;
+			}
+		}
+	}
+
+	private static int[] newSlots(int capacity) {
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		return slots;
+	}
+
+	// ids are sequential, so they are scrambled to spread over the table
+	private static int mix(int value) {
+		int hash = value * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+}
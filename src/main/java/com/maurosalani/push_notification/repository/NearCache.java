@@ -0,0 +1,120 @@
+package com.maurosalani.push_notification.repository;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.BaseStatusListener;
+import org.redisson.client.codec.StringCodec;
+
+import com.maurosalani.push_notification.cache.ExpiringLruCache;
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Local copy of the most read entries of the repository. The scripts that
+ * change a user publish the changed username and endpoints on
+ * {@link #INVALIDATION_CHANNEL}, so every instance of the application drops
+ * its copy, including the one that made the change.
+ */
+public class NearCache {
+
+	static final String INVALIDATION_CHANNEL = "subscription_invalidation";
+
+	// prefixes of the invalidation messages
+	static final String USERNAME = "u:";
+	static final String ENDPOINT = "e:";
+
+	private final ExpiringLruCache<String, Boolean> subscribedEndpoints;
+
+	// the subscriptions of the devices of each username
+	private final ExpiringLruCache<String, Collection<Subscription>> subscriptions;
+
+	// incremented by every invalidation, so a value read from Redis before an
+	// invalidation is not cached after it
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private final RTopic topic;
+
+	NearCache(RedissonClient redisson, int maxSize, Duration ttl) {
+		this.subscribedEndpoints = new ExpiringLruCache<>(maxSize, ttl);
+		this.subscriptions = new ExpiringLruCache<>(maxSize, ttl);
+		this.topic = redisson.getTopic(INVALIDATION_CHANNEL, StringCodec.INSTANCE);
+		this.topic.addListener(String.class, (channel, message) -> invalidate(message));
+		// messages published while disconnected are lost
+		this.topic.addListener(new BaseStatusListener() {
+			@Override
+			public void onSubscribe(String channel) {
+				invalidateAll();
+			}
+		});
+	}
+
+	Boolean isSubscribed(String endpoint, Function<String, Boolean> loader) {
+		return get(this.subscribedEndpoints, endpoint, loader);
+	}
+
+	Collection<Subscription> getSubscriptions(String username) {
+		return this.subscriptions.get(username);
+	}
+
+	/**
+	 * @return the current invalidation count, to pass to
+	 *         {@link #putSubscriptions(String, Collection, long)} once the
+	 *         subscriptions have been read
+	 */
+	long beforeLoad() {
+		return this.invalidations.get();
+	}
+
+	void putSubscriptions(String username, Collection<Subscription> subscriptions, long beforeLoad) {
+		if (this.invalidations.get() == beforeLoad) {
+			this.subscriptions.put(username, subscriptions);
+		}
+	}
+
+	void invalidate(String message) {
+		this.invalidations.incrementAndGet();
+		if (message.startsWith(USERNAME)) {
+			this.subscriptions.invalidate(message.substring(USERNAME.length()));
+		} else if (message.startsWith(ENDPOINT)) {
+			this.subscribedEndpoints.invalidate(message.substring(ENDPOINT.length()));
+		} else {
+			Logger.getLogger(NearCache.class.getName()).info("Unknown invalidation message " + message);
+		}
+	}
+
+	void invalidateAll() {
+		this.invalidations.incrementAndGet();
+		this.subscribedEndpoints.invalidateAll();
+		this.subscriptions.invalidateAll();
+	}
+
+	public long getHits() {
+		return this.subscribedEndpoints.getHits() + this.subscriptions.getHits();
+	}
+
+	public long getMisses() {
+		return this.subscribedEndpoints.getMisses() + this.subscriptions.getMisses();
+	}
+
+	public int size() {
+		return this.subscribedEndpoints.size() + this.subscriptions.size();
+	}
+
+	private <V> V get(ExpiringLruCache<String, V> cache, String key, Function<String, V> loader) {
+		V value = cache.get(key);
+		if (value == null) {
+			long beforeLoad = this.invalidations.get();
+			value = loader.apply(key);
+			if (value != null && this.invalidations.get() == beforeLoad) {
+				cache.put(key, value);
+			}
+		}
+		return value;
+	}
+
+}
@@ -1,84 +1,514 @@
 package com.maurosalani.push_notification.repository;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
 
 import org.redisson.Redisson;
+import org.redisson.api.RBatch;
 import org.redisson.api.RMap;
-import org.redisson.api.RMultimap;
+import org.redisson.api.RScript.Mode;
+import org.redisson.api.RScript.ReturnType;
+import org.redisson.api.RSet;
+import org.redisson.api.RSetMultimap;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.codec.CompositeCodec;
 import org.redisson.config.Config;
 
 import com.maurosalani.push_notification.dto.Subscription;
 
-public class RedisRepository {
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Subscriptions kept in Redis and changed by Lua scripts, one for each
+ * operation. Only a single Redis server, optionally with replicas, is
+ * supported: the scripts reach the sets of the users and topics they read
+ * along the way, which Redis Cluster does not allow.
+ */
+public class RedisRepository implements SubscriptionStore {
 
 	private final String PORT = "6379";
 	private final String URL = "redis://127.0.0.1:";
-	private final String TOPIC_USERNAME = "topic_username";
-	private final String USERNAME_SUBSCRIPTION = "username_subscription";
-	private final String SUB_ENDPOINT_USERNAME = "sub_endpoint_username";
-	final RMultimap<String, String> topic_username; // package scope for IT test
-	final RMap<String, Subscription> username_subscription; // package scope for IT test
+	// one set of usernames for each topic and, as reverse index, one set of
+	// topics for each username; both are changed together by the scripts below
+	private static final String TOPIC_USERNAME = "topic_username:";
+	private static final String USERNAME_TOPIC = "username_topic:";
+	// one set of endpoints for each username, one for each device of the user
+	private static final String USERNAME_ENDPOINTS = "username_endpoints:";
+	private static final String ENDPOINT_SUBSCRIPTION = "endpoint_subscription";
+	private static final String SUB_ENDPOINT_USERNAME = "sub_endpoint_username";
+	// endpoints scored by the expiration time of their subscription
+	private static final String SUBSCRIPTION_EXPIRATION = "subscription_expiration";
+	// layout of the first release, written with the default codec of Redisson
+	// and migrated on start: a single subscription for each user, the same
+	// endpoint -> username hash and a multimap of the usernames of each topic
+	private static final String BASELINE_USERNAME_SUBSCRIPTION = "username_subscription";
+	private static final String BASELINE_SUB_ENDPOINT_USERNAME = "sub_endpoint_username:baseline";
+	private static final String BASELINE_TOPIC_USERNAME = "topic_username";
+	private static final int UNREGISTER_BATCH_SIZE = 500;
+	private static final int MIGRATION_BATCH_SIZE = 500;
+	private final Codec subscriptionCodec;
+	final RedissonClient redisson; // package scope for IT test
+	final RMap<String, Subscription> endpoint_subscription; // package scope for IT test
 	final RMap<String, String> sub_endpoint_username; // package scope for IT test
+	private final NearCache nearCache; // null when disabled
+
+	// KEYS[1] topic set, KEYS[2] reverse index of the user; ARGV[1] username,
+	// ARGV[2] topic
+	private static final String SUBSCRIBE_TO_TOPIC_SCRIPT = "redis.call('sadd', KEYS[1], ARGV[1]); "
+			+ "return redis.call('sadd', KEYS[2], ARGV[2]);";
+
+	private static final String UNSUBSCRIBE_FROM_TOPIC_SCRIPT = "redis.call('srem', KEYS[1], ARGV[1]); "
+			+ "return redis.call('srem', KEYS[2], ARGV[2]);";
+
+	// KEYS[1] reverse index of the user; ARGV[1] username, ARGV[2] prefix of the
+	// topic sets
+	private static final String UNSUBSCRIBE_FROM_ALL_TOPICS_SCRIPT = "local topics = redis.call('smembers', KEYS[1]); "
+			+ "for i, topic in ipairs(topics) do redis.call('srem', ARGV[2] .. topic, ARGV[1]); end; "
+			+ "redis.call('del', KEYS[1]); " + "return #topics;";
+
+	// The scripts below work on KEYS[1] endpoint -> subscription, KEYS[2]
+	// endpoint -> username and KEYS[3] endpoints by expiration time. ARGV[1] is
+	// the prefix of the sets of endpoints of the users, ARGV[2] the prefix of
+	// their reverse indexes and ARGV[3] the prefix of the topic sets: the users
+	// and topics an endpoint belongs to are only known once the script reads
+	// them, so those keys cannot be declared up front. Every changed username
+	// and endpoint is published for the near caches.
+
+	private static final String INVALIDATE_FUNCTION = "local function invalidate(prefix, id) "
+			+ "redis.call('publish', '" + NearCache.INVALIDATION_CHANNEL + "', prefix .. id); end; ";
+
+	private static final String REMOVE_TOPICS_FUNCTION = "local function removeTopics(username) "
+			+ "local topicsKey = ARGV[2] .. username; "
+			+ "for i, topic in ipairs(redis.call('smembers', topicsKey)) do "
+			+ "redis.call('srem', ARGV[3] .. topic, username); end; " + "redis.call('del', topicsKey); end; ";
+
+	// a user left without endpoints is removed from its topics
+	private static final String REMOVE_ENDPOINT_FUNCTION = INVALIDATE_FUNCTION + REMOVE_TOPICS_FUNCTION
+			+ "local function removeEndpoint(endpoint) " + "redis.call('zrem', KEYS[3], endpoint); "
+			+ "local username = redis.call('hget', KEYS[2], endpoint); " + "if not username then return false; end; "
+			+ "redis.call('hdel', KEYS[1], endpoint); " + "redis.call('hdel', KEYS[2], endpoint); "
+			+ "local endpoints = ARGV[1] .. username; " + "redis.call('srem', endpoints, endpoint); "
+			+ "if redis.call('scard', endpoints) == 0 then removeTopics(username); end; " + "invalidate('"
+			+ NearCache.ENDPOINT + "', endpoint); " + "invalidate('" + NearCache.USERNAME + "', username); "
+			+ "return true; end; ";
+
+	// KEYS[4] set of endpoints of the user; ARGV[4] username, ARGV[5] endpoint,
+	// ARGV[6] encoded subscription, ARGV[7] expiration time or empty. The other
+	// devices of the user are kept; an endpoint of another user is moved.
+	private static final String REGISTER_SCRIPT = INVALIDATE_FUNCTION
+			+ "local previous = redis.call('hget', KEYS[2], ARGV[5]); "
+			+ "if previous and previous ~= ARGV[4] then " + "redis.call('srem', ARGV[1] .. previous, ARGV[5]); "
+			+ "invalidate('" + NearCache.USERNAME + "', previous); end; "
+			+ "redis.call('hset', KEYS[1], ARGV[5], ARGV[6]); " + "redis.call('hset', KEYS[2], ARGV[5], ARGV[4]); "
+			+ "redis.call('sadd', KEYS[4], ARGV[5]); "
+			+ "if ARGV[7] ~= '' then redis.call('zadd', KEYS[3], ARGV[7], ARGV[5]); "
+			+ "else redis.call('zrem', KEYS[3], ARGV[5]); end; " + "invalidate('" + NearCache.USERNAME
+			+ "', ARGV[4]); " + "invalidate('" + NearCache.ENDPOINT + "', ARGV[5]); " + "return 1;";
+
+	// ARGV[4..n] endpoints
+	private static final String UNREGISTER_BY_ENDPOINT_SCRIPT = REMOVE_ENDPOINT_FUNCTION + "local removed = 0; "
+			+ "for i = 4, #ARGV do " + "if removeEndpoint(ARGV[i]) then removed = removed + 1; end; end; "
+			+ "return removed;";
+
+	// ARGV[4] time, ARGV[5] maximum number of endpoints. Returns the number of
+	// entries read from the index followed by the endpoints removed; the ones
+	// already unregistered are only dropped from the index.
+	private static final String UNREGISTER_EXPIRED_SCRIPT = REMOVE_ENDPOINT_FUNCTION
+			+ "local due = redis.call('zrangebyscore', KEYS[3], '-inf', ARGV[4], 'LIMIT', 0, ARGV[5]); "
+			+ "local removed = {tostring(#due)}; " + "for i, endpoint in ipairs(due) do "
+			+ "if removeEndpoint(endpoint) then removed[#removed + 1] = endpoint; end; end; " + "return removed;";
+
+	// ARGV[4..n] usernames
+	private static final String UNREGISTER_BY_USERNAME_SCRIPT = INVALIDATE_FUNCTION + REMOVE_TOPICS_FUNCTION
+			+ "local removed = 0; " + "for i = 4, #ARGV do " + "local endpoints = ARGV[1] .. ARGV[i]; "
+			+ "for j, endpoint in ipairs(redis.call('smembers', endpoints)) do "
+			+ "if redis.call('hget', KEYS[2], endpoint) == ARGV[i] then " + "redis.call('hdel', KEYS[1], endpoint); "
+			+ "redis.call('hdel', KEYS[2], endpoint); " + "redis.call('zrem', KEYS[3], endpoint); " + "invalidate('"
+			+ NearCache.ENDPOINT + "', endpoint); end; end; "
+			+ "if redis.call('del', endpoints) == 1 then removed = removed + 1; end; " + "removeTopics(ARGV[i]); "
+			+ "invalidate('" + NearCache.USERNAME + "', ARGV[i]); end; " + "return removed;";
+
+	// KEYS[1] endpoint -> subscription, KEYS[2..n] sets of endpoints of the
+	// users. Returns the subscriptions of all their devices.
+	private static final String GET_SUBSCRIPTIONS_SCRIPT = "local subscriptions = {}; " + "for i = 2, #KEYS do "
+			+ "local endpoints = redis.call('smembers', KEYS[i]); " + "if #endpoints > 0 then "
+			+ "for j, subscription in ipairs(redis.call('hmget', KEYS[1], unpack(endpoints))) do "
+			+ "if subscription then subscriptions[#subscriptions + 1] = subscription; end; end; end; end; "
+			+ "return subscriptions;";
+
+	// KEYS[1] subscriptions of the first release, KEYS[2] endpoint ->
+	// subscription, KEYS[3] endpoint -> username, KEYS[4] where the one of the
+	// first release is set aside. While KEYS[2] does not exist nothing was
+	// migrated yet, so KEYS[3] still holds the encoding of the first release.
+	private static final String SET_ASIDE_SCRIPT = "if redis.call('exists', KEYS[1]) == 1 "
+			+ "and redis.call('exists', KEYS[2]) == 0 and redis.call('exists', KEYS[3]) == 1 then "
+			+ "redis.call('rename', KEYS[3], KEYS[4]); " + "return 1; end; " + "return 0;";
 
 	public RedisRepository() {
+		this(null, 0, null);
+	}
+
+	/**
+	 * @param address       address of the Redis server, or null for the local
+	 *                      default
+	 * @param nearCacheSize entries kept in the near cache, or 0 to always read
+	 *                      from Redis
+	 * @param nearCacheTtl  time after which a cached entry is read again
+	 */
+	public RedisRepository(String address, int nearCacheSize, Duration nearCacheTtl) {
 		Config config = new Config();
-		config.useSingleServer().setAddress(URL + PORT);
-		RedissonClient redisson = Redisson.create(config);
-		topic_username = redisson.getSetMultimap(TOPIC_USERNAME);
-		username_subscription = redisson.getMap(USERNAME_SUBSCRIPTION);
-		sub_endpoint_username = redisson.getMap(SUB_ENDPOINT_USERNAME);
+		config.useSingleServer().setAddress(address != null ? address : URL + PORT);
+		config.setUseScriptCache(true);
+		redisson = Redisson.create(config);
+		// plain string keys, so that the scripts can address the fields
+		subscriptionCodec = SubscriptionCodec.INSTANCE;
+		endpoint_subscription = redisson.getMap(ENDPOINT_SUBSCRIPTION,
+				new CompositeCodec(StringCodec.INSTANCE, subscriptionCodec));
+		sub_endpoint_username = redisson.getMap(SUB_ENDPOINT_USERNAME, StringCodec.INSTANCE);
+		migrateBaselineLayout();
+		nearCache = nearCacheSize > 0 ? new NearCache(redisson, nearCacheSize, nearCacheTtl) : null;
+	}
+
+	/**
+	 * Copies the subscriptions and topics of the first release to the current
+	 * layout, re-encoding them. Its keys are deleted only once everything was
+	 * copied: a failure leaves them for the next start, and copying them again
+	 * is harmless.
+	 */
+	private void migrateBaselineLayout() {
+		try {
+			redisson.getScript(StringCodec.INSTANCE).eval(Mode.READ_WRITE, SET_ASIDE_SCRIPT, ReturnType.INTEGER,
+					Arrays.asList(BASELINE_USERNAME_SUBSCRIPTION, ENDPOINT_SUBSCRIPTION, SUB_ENDPOINT_USERNAME,
+							BASELINE_SUB_ENDPOINT_USERNAME));
+			RMap<String, Subscription> subscriptions = redisson.getMap(BASELINE_USERNAME_SUBSCRIPTION);
+			List<Subscription> chunk = new ArrayList<>(MIGRATION_BATCH_SIZE);
+			int migrated = 0;
+			for (Subscription subscription : subscriptions.values(MIGRATION_BATCH_SIZE)) {
+				chunk.add(subscription);
+				if (chunk.size() == MIGRATION_BATCH_SIZE) {
+					registerUsers(chunk, Collections.emptyMap()).join();
+					migrated += chunk.size();
+					chunk.clear();
+				}
+			}
+			registerUsers(chunk, Collections.emptyMap()).join();
+			migrated += chunk.size();
+			RSetMultimap<String, String> topics = redisson.getSetMultimap(BASELINE_TOPIC_USERNAME);
+			int memberships = 0;
+			for (String topic : topics.readAllKeySet()) {
+				Map<String, Collection<String>> topicsByUsername = new HashMap<>();
+				for (String username : topics.getAll(topic)) {
+					topicsByUsername.put(username, Collections.singleton(topic));
+				}
+				registerUsers(Collections.emptyList(), topicsByUsername).join();
+				memberships += topicsByUsername.size();
+			}
+			redisson.getKeys().delete(BASELINE_USERNAME_SUBSCRIPTION, BASELINE_SUB_ENDPOINT_USERNAME);
+			topics.delete();
+			if (migrated > 0 || memberships > 0) {
+				Logger.getLogger(RedisRepository.class.getName()).info("Migrated " + migrated
+						+ " subscriptions and " + memberships + " topic memberships of the first release");
+			}
+		} catch (RuntimeException e) {
+			Logger.getLogger(RedisRepository.class.getName())
+					.info("Layout of the first release kept for the next start " + e);
+		}
+	}
+
+	/**
+	 * @return the client, to keep other data in the same Redis
+	 */
+	public RedissonClient getRedissonClient() {
+		return redisson;
+	}
+
+	/**
+	 * @return the near cache, or null if it is disabled
+	 */
+	public NearCache getNearCache() {
+		return nearCache;
 	}
 
+	private RSet<String> topicSet(String topic) {
+		return redisson.getSet(TOPIC_USERNAME + topic, StringCodec.INSTANCE);
+	}
+
+	@Override
 	public void subscribeUserToTopic(String topic, String username) {
-		topic_username.put(topic, username);
+		redisson.getScript(StringCodec.INSTANCE).eval(Mode.READ_WRITE, SUBSCRIBE_TO_TOPIC_SCRIPT,
+				ReturnType.INTEGER, Arrays.asList(TOPIC_USERNAME + topic, USERNAME_TOPIC + username), username,
+				topic);
 	}
 
+	@Override
 	public void unsubscribeUserFromTopic(String topic, String username) {
-		topic_username.remove(topic, username);
+		redisson.getScript(StringCodec.INSTANCE).eval(Mode.READ_WRITE, UNSUBSCRIBE_FROM_TOPIC_SCRIPT,
+				ReturnType.INTEGER, Arrays.asList(TOPIC_USERNAME + topic, USERNAME_TOPIC + username), username,
+				topic);
 	}
 
+	@Override
 	public Collection<String> getAllUsernameFromTopic(String topic) {
-		return topic_username.getAll(topic);
+		return topicSet(topic).readAll();
+	}
+
+	@Override
+	public Collection<String> getAllTopicsFromUsername(String username) {
+		return redisson.<String>getSet(USERNAME_TOPIC + username, StringCodec.INSTANCE).readAll();
+	}
+
+	/**
+	 * Iterates over the users of a topic with SSCAN, reading scanBatchSize
+	 * usernames per request, so the whole set is never loaded at once
+	 */
+	public Iterator<String> scanUsernamesFromTopic(String topic, int scanBatchSize) {
+		return topicSet(topic).iterator(scanBatchSize);
+	}
+
+	/**
+	 * Iterates over the subscriptions of the users of a topic. Usernames are
+	 * scanned and their subscriptions read in batches of batchSize, so memory
+	 * does not grow with the size of the topic.
+	 *
+	 * SSCAN returns a member more than once when the set is rehashed during the
+	 * scan, and such a user may fall in two chunks. The usernames already seen
+	 * are not kept, since that set would grow with the topic: the delivery is at
+	 * least once. Users added or removed during the scan may or may not be
+	 * returned.
+	 */
+	@Override
+	public Iterator<Subscription> scanSubscriptionsFromTopic(String topic, int batchSize) {
+		Iterator<Collection<Subscription>> chunks = streamSubscriptions(scanUsernamesFromTopic(topic, batchSize),
+				batchSize);
+		return new Iterator<Subscription>() {
+
+			private Iterator<Subscription> chunk = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!chunk.hasNext() && chunks.hasNext()) {
+					chunk = chunks.next().iterator();
+				}
+				return chunk.hasNext();
+			}
+
+			@Override
+			public Subscription next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return chunk.next();
+			}
+		};
 	}
 
+	/**
+	 * Removes the user from the topics found in its reverse index, atomically and
+	 * with a single request
+	 */
+	@Override
 	public void unsubscribeUsernameFromAllTopics(String username) {
-		topic_username.keySet().stream().forEach(topic -> unsubscribeUserFromTopic(topic, username));
+		redisson.getScript(StringCodec.INSTANCE).eval(Mode.READ_WRITE, UNSUBSCRIBE_FROM_ALL_TOPICS_SCRIPT,
+				ReturnType.INTEGER, Collections.singletonList(USERNAME_TOPIC + username), username, TOPIC_USERNAME);
 	}
 
+	/**
+	 * Stores the subscription of a device of a user with a single request
+	 */
+	@Override
 	public void registerUser(Subscription subscription) {
-		username_subscription.put(subscription.getUsername(), subscription);
-		sub_endpoint_username.put(subscription.getEndpoint(), subscription.getUsername());
+		redisson.getScript(ByteArrayCodec.INSTANCE).eval(Mode.READ_WRITE, REGISTER_SCRIPT, ReturnType.INTEGER,
+				registerKeys(subscription), registerArgs(subscription));
+		// the published invalidation reaches this instance asynchronously
+		invalidateLocally(NearCache.USERNAME + subscription.getUsername());
+		invalidateLocally(NearCache.ENDPOINT + subscription.getEndpoint());
 	}
 
-	public void unregisterUserByEndpoint(String endpoint) {
-		if (sub_endpoint_username.containsKey(endpoint)) {
-			String username = sub_endpoint_username.get(endpoint);
-			removeUsernameFromTopics(username);
-			sub_endpoint_username.remove(endpoint);
-			username_subscription.remove(username);
+	/**
+	 * Stores many subscriptions and topic memberships with the same scripts of
+	 * {@link #registerUser(Subscription)} and
+	 * {@link #subscribeUserToTopic(String, String)}, all sent in one pipeline
+	 */
+	@Override
+	public CompletableFuture<Void> registerUsers(Collection<Subscription> subscriptions,
+			Map<String, ? extends Collection<String>> topicsByUsername) {
+		RBatch batch = redisson.createBatch();
+		for (Subscription subscription : subscriptions) {
+			batch.getScript(ByteArrayCodec.INSTANCE).evalAsync(Mode.READ_WRITE, REGISTER_SCRIPT, ReturnType.INTEGER,
+					registerKeys(subscription), registerArgs(subscription));
 		}
+		topicsByUsername.forEach((username, topics) -> {
+			for (String topic : topics) {
+				batch.getScript(StringCodec.INSTANCE).evalAsync(Mode.READ_WRITE, SUBSCRIBE_TO_TOPIC_SCRIPT,
+						ReturnType.INTEGER, Arrays.asList(TOPIC_USERNAME + topic, USERNAME_TOPIC + username),
+						username, topic);
+			}
+		});
+		return batch.executeAsync().toCompletableFuture().thenRun(() -> {
+			for (Subscription subscription : subscriptions) {
+				invalidateLocally(NearCache.USERNAME + subscription.getUsername());
+				invalidateLocally(NearCache.ENDPOINT + subscription.getEndpoint());
+			}
+		});
 	}
 
+	@Override
+	public void unregisterUserByEndpoint(String endpoint) {
+		unregister(UNREGISTER_BY_ENDPOINT_SCRIPT, Collections.singletonList(endpoint));
+		invalidateLocally(NearCache.ENDPOINT + endpoint);
+	}
+
+	@Override
 	public void unregisterUserByUsername(String username) {
-		if (username_subscription.containsKey(username)) {
-			String endpoint = username_subscription.get(username).getEndpoint();
-			removeUsernameFromTopics(username);
-			sub_endpoint_username.remove(endpoint);
-			username_subscription.remove(username);
+		unregister(UNREGISTER_BY_USERNAME_SCRIPT, Collections.singletonList(username));
+		invalidateLocally(NearCache.USERNAME + username);
+	}
+
+	private void invalidateLocally(String message) {
+		if (nearCache != null) {
+			nearCache.invalidate(message);
 		}
 	}
 
-	private void removeUsernameFromTopics(String username) {
-		for (String topic : topic_username.keySet()) {
-			if (topic_username.get(topic).contains(username)) {
-				topic_username.remove(topic, username);
+	/**
+	 * Unregisters many endpoints, such as the ones a push service reported as
+	 * gone during a broadcast. The endpoints are removed by scripts of at most
+	 * UNREGISTER_BATCH_SIZE endpoints each, all sent in one pipeline.
+	 *
+	 * @return the number of endpoints unregistered
+	 */
+	@Override
+	public long unregisterUsersByEndpoints(Collection<String> endpoints) {
+		if (endpoints.isEmpty()) {
+			return 0;
+		}
+		RBatch batch = redisson.createBatch();
+		List<String> chunk = new ArrayList<>(UNREGISTER_BATCH_SIZE);
+		for (String endpoint : endpoints) {
+			chunk.add(endpoint);
+			if (chunk.size() == UNREGISTER_BATCH_SIZE) {
+				batch.getScript(ByteArrayCodec.INSTANCE).evalAsync(Mode.READ_WRITE, UNREGISTER_BY_ENDPOINT_SCRIPT,
+						ReturnType.INTEGER, userKeys(), unregisterArgs(chunk));
+				chunk.clear();
 			}
 		}
+		if (!chunk.isEmpty()) {
+			batch.getScript(ByteArrayCodec.INSTANCE).evalAsync(Mode.READ_WRITE, UNREGISTER_BY_ENDPOINT_SCRIPT,
+					ReturnType.INTEGER, userKeys(), unregisterArgs(chunk));
+		}
+		long removed = 0;
+		for (Object count : batch.execute().getResponses()) {
+			removed += (Long) count;
+		}
+		return removed;
 	}
 
+	/**
+	 * Removes, with a single script, at most limit subscriptions taken from the
+	 * index of the expiration times
+	 */
+	@Override
+	public ExpiredBatch unregisterExpired(long now, int limit) {
+		List<byte[]> removed = redisson.getScript(ByteArrayCodec.INSTANCE).eval(Mode.READ_WRITE,
+				UNREGISTER_EXPIRED_SCRIPT, ReturnType.MULTI, userKeys(),
+				unregisterArgs(Arrays.asList(Long.toString(now), Integer.toString(limit))));
+		int scanned = Integer.parseInt(new String(removed.get(0), StandardCharsets.UTF_8));
+		List<String> endpoints = new ArrayList<>(removed.size() - 1);
+		for (byte[] value : removed.subList(1, removed.size())) {
+			String endpoint = new String(value, StandardCharsets.UTF_8);
+			endpoints.add(endpoint);
+			invalidateLocally(NearCache.ENDPOINT + endpoint);
+		}
+		return new ExpiredBatch(scanned, endpoints);
+	}
+
+	private long unregister(String script, List<String> ids) {
+		Long removed = redisson.getScript(ByteArrayCodec.INSTANCE).eval(Mode.READ_WRITE, script, ReturnType.INTEGER,
+				userKeys(), unregisterArgs(ids));
+		return removed;
+	}
+
+	private static List<Object> userKeys() {
+		return Arrays.asList(ENDPOINT_SUBSCRIPTION, SUB_ENDPOINT_USERNAME, SUBSCRIPTION_EXPIRATION);
+	}
+
+	private static List<Object> registerKeys(Subscription subscription) {
+		return Arrays.asList(ENDPOINT_SUBSCRIPTION, SUB_ENDPOINT_USERNAME, SUBSCRIPTION_EXPIRATION,
+				USERNAME_ENDPOINTS + subscription.getUsername());
+	}
+
+	private Object[] registerArgs(Subscription subscription) {
+		Long expirationTime = subscription.getExpirationTime();
+		return new Object[] { bytes(USERNAME_ENDPOINTS), bytes(USERNAME_TOPIC), bytes(TOPIC_USERNAME),
+				bytes(subscription.getUsername()), bytes(subscription.getEndpoint()), encode(subscription),
+				bytes(expirationTime != null ? expirationTime.toString() : "") };
+	}
+
+	private static Object[] unregisterArgs(List<String> ids) {
+		Object[] args = new Object[ids.size() + 3];
+		args[0] = bytes(USERNAME_ENDPOINTS);
+		args[1] = bytes(USERNAME_TOPIC);
+		args[2] = bytes(TOPIC_USERNAME);
+		for (int i = 0; i < ids.size(); i++) {
+			args[i + 3] = bytes(ids.get(i));
+		}
+		return args;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private Subscription decode(byte[] value) {
+		ByteBuf encoded = Unpooled.wrappedBuffer(value);
+		try {
+			return (Subscription) subscriptionCodec.getMapValueDecoder().decode(encoded, null);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			encoded.release();
+		}
+	}
+
+	private byte[] encode(Subscription subscription) {
+		ByteBuf encoded = null;
+		try {
+			encoded = subscriptionCodec.getMapValueEncoder().encode(subscription);
+			return ByteBufUtil.getBytes(encoded);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			if (encoded != null) {
+				encoded.release();
+			}
+		}
+	}
+
+	@Override
 	public boolean isSubscribed(String endpoint) {
-		return sub_endpoint_username.containsKey(endpoint);
+		if (nearCache == null) {
+			return sub_endpoint_username.containsKey(endpoint);
+		}
+		return nearCache.isSubscribed(endpoint, sub_endpoint_username::containsKey);
 	}
 
 	public String getPORT() {
@@ -89,7 +519,122 @@ public class RedisRepository {
 		return URL;
 	}
 
-	public Subscription getSubscriptionFromUsername(String username) {
-		return username_subscription.get(username);
+	@Override
+	public Collection<Subscription> getSubscriptionsFromUsername(String username) {
+		Collection<Subscription> subscriptions = getSubscriptions(Collections.singletonList(username)).get(username);
+		return subscriptions != null ? subscriptions : Collections.emptyList();
+	}
+
+	/**
+	 * Reads the subscriptions of all the devices of many users with a single
+	 * request
+	 *
+	 * @return the subscriptions by username, without the users that have none
+	 */
+	@Override
+	public Map<String, Collection<Subscription>> getSubscriptions(Collection<String> usernames) {
+		return getSubscriptionsAsync(new HashSet<>(usernames)).join();
+	}
+
+	/**
+	 * Reads from Redis, with a single request, the subscriptions that are not in
+	 * the near cache
+	 */
+	private CompletableFuture<Map<String, Collection<Subscription>>> getSubscriptionsAsync(Set<String> usernames) {
+		if (nearCache == null) {
+			return readSubscriptions(usernames);
+		}
+		Map<String, Collection<Subscription>> cached = new HashMap<>();
+		Set<String> missing = new HashSet<>();
+		for (String username : usernames) {
+			Collection<Subscription> subscriptions = nearCache.getSubscriptions(username);
+			if (subscriptions != null) {
+				cached.put(username, subscriptions);
+			} else {
+				missing.add(username);
+			}
+		}
+		if (missing.isEmpty()) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		long beforeLoad = nearCache.beforeLoad();
+		return readSubscriptions(missing).thenApply(loaded -> {
+			loaded.forEach(
+					(username, subscriptions) -> nearCache.putSubscriptions(username, subscriptions, beforeLoad));
+			cached.putAll(loaded);
+			return cached;
+		});
+	}
+
+	private CompletableFuture<Map<String, Collection<Subscription>>> readSubscriptions(Collection<String> usernames) {
+		List<Object> keys = new ArrayList<>(usernames.size() + 1);
+		keys.add(ENDPOINT_SUBSCRIPTION);
+		for (String username : usernames) {
+			keys.add(USERNAME_ENDPOINTS + username);
+		}
+		return redisson.getScript(ByteArrayCodec.INSTANCE)
+				.<List<byte[]>>evalAsync(Mode.READ_ONLY, GET_SUBSCRIPTIONS_SCRIPT, ReturnType.MULTI, keys)
+				.toCompletableFuture().thenApply(encoded -> {
+					Map<String, Collection<Subscription>> subscriptions = new HashMap<>();
+					for (byte[] value : encoded) {
+						Subscription subscription = decode(value);
+						subscriptions.computeIfAbsent(subscription.getUsername(), username -> new ArrayList<>())
+								.add(subscription);
+					}
+					// they may be kept in the near cache
+					subscriptions.replaceAll((username, devices) -> Collections.unmodifiableCollection(devices));
+					return subscriptions;
+				});
+	}
+
+	/**
+	 * Reads the subscriptions of all the devices of the users, in chunks of
+	 * chunkSize usernames read by one script each. Each
+	 * chunk is requested while the previous one is being consumed, so the
+	 * requests to Redis are pipelined with the work of the caller.
+	 */
+	public Iterator<Collection<Subscription>> streamSubscriptions(Iterator<String> usernames, int chunkSize) {
+		return new SubscriptionChunkIterator(usernames, chunkSize);
+	}
+
+	private class SubscriptionChunkIterator implements Iterator<Collection<Subscription>> {
+
+		private final Iterator<String> usernames;
+
+		private final int chunkSize;
+
+		private CompletableFuture<Map<String, Collection<Subscription>>> nextChunk;
+
+		private SubscriptionChunkIterator(Iterator<String> usernames, int chunkSize) {
+			this.usernames = usernames;
+			this.chunkSize = chunkSize;
+			this.nextChunk = requestChunk();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.nextChunk != null;
+		}
+
+		@Override
+		public Collection<Subscription> next() {
+			if (this.nextChunk == null) {
+				throw new NoSuchElementException();
+			}
+			Map<String, Collection<Subscription>> chunk = this.nextChunk.join();
+			this.nextChunk = requestChunk();
+			List<Subscription> subscriptions = new ArrayList<>();
+			chunk.values().forEach(subscriptions::addAll);
+			return subscriptions;
+		}
+
+		private CompletableFuture<Map<String, Collection<Subscription>>> requestChunk() {
+			Set<String> chunk = new HashSet<>();
+			while (chunk.size() < this.chunkSize && this.usernames.hasNext()) {
+				chunk.add(this.usernames.next());
+			}
+			return chunk.isEmpty() ? null : getSubscriptionsAsync(chunk);
+		}
+
 	}
 }
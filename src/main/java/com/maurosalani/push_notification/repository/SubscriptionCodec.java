@@ -0,0 +1,154 @@
+package com.maurosalani.push_notification.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.redisson.client.codec.BaseCodec;
+import org.redisson.client.handler.State;
+import org.redisson.client.protocol.Decoder;
+import org.redisson.client.protocol.Encoder;
+
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Stores a {@link Subscription} in a compact binary layout instead of Java
+ * serialization:
+ *
+ * <pre>
+ * version (1) | flags (1) | username | endpoint | [expirationTime (8)] | p256dh | auth
+ * </pre>
+ *
+ * Strings and keys are prefixed by their length as a varint. The p256dh key
+ * (65 bytes) and the auth secret (16 bytes) are stored decoded from Base64
+ * whenever they can be encoded back to the same string.
+ */
+public class SubscriptionCodec extends BaseCodec {
+
+	public static final SubscriptionCodec INSTANCE = new SubscriptionCodec();
+
+	private static final byte VERSION = 1;
+
+	private static final int HAS_EXPIRATION_TIME = 1;
+
+	// keys are stored as bytes decoded from Base64 url without padding
+	private static final int RAW_KEYS = 2;
+
+	private final Encoder encoder = this::encode;
+
+	private final Decoder<Object> decoder = this::decode;
+
+	public SubscriptionCodec() {
+	}
+
+	// used by Redisson to copy the codec for another class loader
+	public SubscriptionCodec(ClassLoader classLoader, SubscriptionCodec codec) {
+	}
+
+	@Override
+	public Decoder<Object> getValueDecoder() {
+		return this.decoder;
+	}
+
+	@Override
+	public Encoder getValueEncoder() {
+		return this.encoder;
+	}
+
+	private ByteBuf encode(Object value) throws IOException {
+		if (!(value instanceof Subscription)) {
+			throw new IOException("Unsupported value " + value);
+		}
+		Subscription subscription = (Subscription) value;
+		SubscriptionKeys keys = subscription.getKeys();
+		byte[] p256dh = rawKey(keys.getP256dh());
+		byte[] auth = rawKey(keys.getAuth());
+		boolean rawKeys = p256dh != null && auth != null;
+		if (!rawKeys) {
+			p256dh = keys.getP256dh().getBytes(StandardCharsets.UTF_8);
+			auth = keys.getAuth().getBytes(StandardCharsets.UTF_8);
+		}
+
+		int flags = (subscription.getExpirationTime() != null ? HAS_EXPIRATION_TIME : 0) | (rawKeys ? RAW_KEYS : 0);
+		ByteBuf out = ByteBufAllocator.DEFAULT.buffer();
+		out.writeByte(VERSION);
+		out.writeByte(flags);
+		writeBytes(out, subscription.getUsername().getBytes(StandardCharsets.UTF_8));
+		writeBytes(out, subscription.getEndpoint().getBytes(StandardCharsets.UTF_8));
+		if (subscription.getExpirationTime() != null) {
+			out.writeLong(subscription.getExpirationTime());
+		}
+		writeBytes(out, p256dh);
+		writeBytes(out, auth);
+		return out;
+	}
+
+	private Object decode(ByteBuf in, State state) throws IOException {
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported subscription format version " + version);
+		}
+		int flags = in.readByte();
+		String username = readString(in);
+		String endpoint = readString(in);
+		Long expirationTime = (flags & HAS_EXPIRATION_TIME) != 0 ? in.readLong() : null;
+		String p256dh;
+		String auth;
+		if ((flags & RAW_KEYS) != 0) {
+			p256dh = Base64.getUrlEncoder().withoutPadding().encodeToString(readBytes(in));
+			auth = Base64.getUrlEncoder().withoutPadding().encodeToString(readBytes(in));
+		} else {
+			p256dh = readString(in);
+			auth = readString(in);
+		}
+		return new Subscription(username, endpoint, expirationTime, new SubscriptionKeys(p256dh, auth));
+	}
+
+	/**
+	 * @return the decoded key, or null if decoding it would lose its exact string
+	 */
+	private static byte[] rawKey(String key) {
+		try {
+			byte[] raw = Base64.getUrlDecoder().decode(key);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(raw).equals(key) ? raw : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static void writeBytes(ByteBuf out, byte[] value) {
+		int length = value.length;
+		while ((length & ~0x7F) != 0) {
+			out.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		out.writeByte(length);
+		out.writeBytes(value);
+	}
+
+	private static byte[] readBytes(ByteBuf in) throws IOException {
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (shift > 28) {
+				throw new IOException("Malformed length");
+			}
+			byte b = in.readByte();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		byte[] value = new byte[length];
+		in.readBytes(value);
+		return value;
+	}
+
+	private static String readString(ByteBuf in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+
+}
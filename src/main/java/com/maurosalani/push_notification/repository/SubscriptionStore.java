@@ -0,0 +1,95 @@
+package com.maurosalani.push_notification.repository;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.maurosalani.push_notification.dto.Subscription;
+
+/**
+ * Storage of the subscriptions of the users and of the topics they follow.
+ * Every user has one subscription for each of its devices, and every endpoint
+ * belongs to at most one user.
+ */
+public interface SubscriptionStore {
+
+	void subscribeUserToTopic(String topic, String username);
+
+	void unsubscribeUserFromTopic(String topic, String username);
+
+	Collection<String> getAllUsernameFromTopic(String topic);
+
+	Collection<String> getAllTopicsFromUsername(String username);
+
+	/**
+	 * Iterates over the subscriptions of all the devices of the users of a topic,
+	 * reading the ones of at most batchSize users at a time. Users without a
+	 * subscription are skipped. A user may be returned more than once if the
+	 * topic changes while it is iterated, so a broadcast reaches each device at
+	 * least once.
+	 */
+	Iterator<Subscription> scanSubscriptionsFromTopic(String topic, int batchSize);
+
+	void unsubscribeUsernameFromAllTopics(String username);
+
+	/**
+	 * Stores the subscription of a device of a user, next to the ones of its
+	 * other devices. An endpoint that belonged to another user is moved.
+	 */
+	void registerUser(Subscription subscription);
+
+	/**
+	 * Stores many subscriptions, as {@link #registerUser(Subscription)} does, and
+	 * subscribes their users to the topics given by username. The caller can go on
+	 * while they are written.
+	 *
+	 * @return completed when every subscription and topic is stored
+	 */
+	CompletableFuture<Void> registerUsers(Collection<Subscription> subscriptions,
+			Map<String, ? extends Collection<String>> topicsByUsername);
+
+	/**
+	 * Removes the subscription of the endpoint. The other devices of its user are
+	 * kept; a user left without devices is removed from its topics.
+	 */
+	void unregisterUserByEndpoint(String endpoint);
+
+	/**
+	 * Removes the user, the subscriptions of all its devices and its topics
+	 */
+	void unregisterUserByUsername(String username);
+
+	/**
+	 * Removes the subscriptions of the endpoints as
+	 * {@link #unregisterUserByEndpoint(String)} does
+	 *
+	 * @return the number of endpoints unregistered
+	 */
+	long unregisterUsersByEndpoints(Collection<String> endpoints);
+
+	/**
+	 * Removes, as {@link #unregisterUserByEndpoint(String)} does, at most limit
+	 * of the subscriptions whose expiration time is not after now, the oldest
+	 * first
+	 *
+	 * @param now milliseconds since the epoch
+	 * @return the endpoints unregistered, and how many entries of the index
+	 *         were read to find them
+	 */
+	ExpiredBatch unregisterExpired(long now, int limit);
+
+	boolean isSubscribed(String endpoint);
+
+	/**
+	 * @return the subscriptions of the devices of the user, empty if it has none
+	 */
+	Collection<Subscription> getSubscriptionsFromUsername(String username);
+
+	/**
+	 * @return the subscriptions of the devices of each user, without the users
+	 *         that have none
+	 */
+	Map<String, Collection<Subscription>> getSubscriptions(Collection<String> usernames);
+
+}
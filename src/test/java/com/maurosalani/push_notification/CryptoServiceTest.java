@@ -0,0 +1,214 @@
+package com.maurosalani.push_notification;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CryptoServiceTest {
+
+	private CryptoService cryptoService;
+
+	private KeyPair uaKeyPair;
+
+	private byte[] authSecret;
+
+	@Before
+	public void setup() {
+		cryptoService = new CryptoService();
+		uaKeyPair = cryptoService.generateKeyPair();
+		authSecret = new byte[16];
+		new SecureRandom().nextBytes(authSecret);
+	}
+
+	@Test
+	public void testPreparePlaintextAddsDelimiterAndPadding() {
+		byte[] plainText = cryptoService.preparePlaintext("abc".getBytes(StandardCharsets.UTF_8), 10);
+		assertThat(plainText).hasSize(11);
+		assertThat(plainText[3]).isEqualTo((byte) 2);
+		assertThat(Arrays.copyOfRange(plainText, 4, 11)).containsOnly(0);
+	}
+
+	@Test
+	public void testEncryptedPayloadCanBeDecryptedByTheUserAgent() throws Exception {
+		String uaPublicKey = Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(CryptoService.toUncompressedECPublicKey((ECPublicKey) uaKeyPair.getPublic()));
+
+		byte[] encrypted = cryptoService.encrypt("{\"title\":\"topic\"}", uaPublicKey,
+				Base64.getUrlEncoder().encodeToString(authSecret), 0);
+
+		assertThat(new String(decrypt(encrypted), StandardCharsets.UTF_8)).isEqualTo("{\"title\":\"topic\"}");
+	}
+
+	@Test
+	public void testSharedPlaintextIsEncryptedWithFreshKeysForEachRecipient() throws Exception {
+		byte[] plainText = cryptoService.preparePlaintext("hello".getBytes(StandardCharsets.UTF_8), 32);
+		byte[] original = plainText.clone();
+
+		byte[] first = cryptoService.encrypt(plainText, (ECPublicKey) uaKeyPair.getPublic(), authSecret);
+		byte[] second = cryptoService.encrypt(plainText, (ECPublicKey) uaKeyPair.getPublic(), authSecret);
+
+		assertThat(plainText).isEqualTo(original);
+		assertThat(first).isNotEqualTo(second);
+		assertThat(new String(decrypt(first), StandardCharsets.UTF_8)).isEqualTo("hello");
+		assertThat(new String(decrypt(second), StandardCharsets.UTF_8)).isEqualTo("hello");
+	}
+
+	@Test
+	public void testEncryptWritesTheWholeMessageIntoTheOutputBuffer() throws Exception {
+		byte[] plainText = cryptoService.preparePlaintext("hello".getBytes(StandardCharsets.UTF_8), 0);
+		byte[] output = new byte[10 + CryptoService.encryptedLength(plainText.length)];
+
+		int written = cryptoService.encrypt(plainText, plainText.length,
+				new ParsedSubscriptionKeys(null, (ECPublicKey) uaKeyPair.getPublic(), authSecret), output, 10);
+
+		assertThat(written).isEqualTo(CryptoService.encryptedLength(plainText.length));
+		assertThat(new String(decrypt(Arrays.copyOfRange(output, 10, output.length)), StandardCharsets.UTF_8))
+				.isEqualTo("hello");
+	}
+
+	@Test
+	public void testEphemeralKeysAreTakenFromThePool() throws Exception {
+		EphemeralKeyPairPool pool = new EphemeralKeyPairPool(4, 1);
+		try {
+			cryptoService = new CryptoService(pool);
+			byte[] plainText = cryptoService.preparePlaintext("hello".getBytes(StandardCharsets.UTF_8), 0);
+
+			byte[] encrypted = cryptoService.encrypt(plainText, (ECPublicKey) uaKeyPair.getPublic(), authSecret);
+
+			assertThat(pool.getTaken()).isEqualTo(1);
+			assertThat(new String(decrypt(encrypted), StandardCharsets.UTF_8)).isEqualTo("hello");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentEncryptionsUseIndependentState() throws Exception {
+		byte[] plainText = cryptoService.preparePlaintext("hello".getBytes(StandardCharsets.UTF_8), 0);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> encrypted = new ArrayList<>();
+			for (int i = 0; i < 40; i++) {
+				encrypted.add(executor.submit(
+						() -> cryptoService.encrypt(plainText, (ECPublicKey) uaKeyPair.getPublic(), authSecret)));
+			}
+
+			Set<String> salts = new HashSet<>();
+			for (Future<byte[]> message : encrypted) {
+				assertThat(new String(decrypt(message.get()), StandardCharsets.UTF_8)).isEqualTo("hello");
+				salts.add(Base64.getEncoder().encodeToString(Arrays.copyOf(message.get(), 16)));
+			}
+			assertThat(salts).hasSize(40);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testVirtualThreadsReuseTheEncryptionState() throws Exception {
+		ExecutorService executor;
+		try {
+			executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			Assume.assumeNoException("virtual threads need Java 21", e);
+			return;
+		}
+		// no generator thread, so every key pair is generated by the caller
+		EphemeralKeyPairPool pool = new EphemeralKeyPairPool(1, 0);
+		cryptoService = new CryptoService(pool);
+		byte[] plainText = cryptoService.preparePlaintext("hello".getBytes(StandardCharsets.UTF_8), 0);
+		try {
+			List<Future<byte[]>> encrypted = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				encrypted.add(executor.submit(
+						() -> cryptoService.encrypt(plainText, (ECPublicKey) uaKeyPair.getPublic(), authSecret)));
+			}
+			for (Future<byte[]> message : encrypted) {
+				assertThat(new String(decrypt(message.get()), StandardCharsets.UTF_8)).isEqualTo("hello");
+			}
+		} finally {
+			executor.shutdown();
+			pool.shutdown();
+		}
+
+		// one for each message encrypted at the same time, not one for each thread
+		assertThat(cryptoService.getCreatedContexts()).isLessThan(100);
+		assertThat(pool.getStalls()).isEqualTo(1000);
+		assertThat(pool.getInlineGenerators()).isLessThan(100);
+	}
+
+	// user agent side of https://tools.ietf.org/html/rfc8291
+	private byte[] decrypt(byte[] message) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		byte[] salt = new byte[16];
+		buffer.get(salt);
+		int recordSize = buffer.getInt();
+		byte[] asPublicKey = new byte[buffer.get()];
+		buffer.get(asPublicKey);
+		byte[] cipherText = new byte[buffer.remaining()];
+		buffer.get(cipherText);
+		assertThat(recordSize).isGreaterThanOrEqualTo(cipherText.length);
+
+		KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+		keyAgreement.init((ECPrivateKey) uaKeyPair.getPrivate());
+		keyAgreement.doPhase(
+				cryptoService.fromUncompressedECPublicKey(Base64.getUrlEncoder().encodeToString(asPublicKey)), true);
+		byte[] ecdhSecret = keyAgreement.generateSecret();
+
+		byte[] prkKey = hmac(authSecret, ecdhSecret);
+		byte[] keyInfo = ByteBuffer.allocate(14 + 65 + 65).put("WebPush: info\0".getBytes(StandardCharsets.UTF_8))
+				.put(CryptoService.toUncompressedECPublicKey((ECPublicKey) uaKeyPair.getPublic())).put(asPublicKey)
+				.array();
+		byte[] ikm = hmac(prkKey, keyInfo, new byte[] { 1 });
+		byte[] prk = hmac(salt, ikm);
+		byte[] cek = Arrays.copyOf(hmac(prk, "Content-Encoding: aes128gcm\0".getBytes(StandardCharsets.UTF_8),
+				new byte[] { 1 }), 16);
+		byte[] nonce = Arrays.copyOf(
+				hmac(prk, "Content-Encoding: nonce\0".getBytes(StandardCharsets.UTF_8), new byte[] { 1 }), 12);
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, nonce));
+		byte[] plainText = cipher.doFinal(cipherText);
+
+		int delimiter = plainText.length - 1;
+		while (plainText[delimiter] == 0) {
+			delimiter--;
+		}
+		assertThat(plainText[delimiter]).isEqualTo((byte) 2);
+		return Arrays.copyOf(plainText, delimiter);
+	}
+
+	private static byte[] hmac(byte[] key, byte[]... inputs) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		for (byte[] input : inputs) {
+			mac.update(input);
+		}
+		return mac.doFinal();
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.maurosalani.push_notification;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.interfaces.ECPublicKey;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.maurosalani.push_notification.delivery.PushServices;
+import com.maurosalani.push_notification.dto.ImportReport;
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.repository.InMemorySubscriptionStore;
+
+public class SubscriptionImporterTest {
+
+	private static final String AUTH = Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[16]);
+
+	private static String p256dh;
+
+	private InMemorySubscriptionStore store;
+
+	@BeforeClass
+	public static void generateKey() throws GeneralSecurityException {
+		ECPublicKey publicKey = (ECPublicKey) CryptoService.newKeyPairGenerator().generateKeyPair().getPublic();
+		p256dh = Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(CryptoService.toUncompressedECPublicKey(publicKey));
+	}
+
+	@Before
+	public void setup() {
+		store = new InMemorySubscriptionStore();
+	}
+
+	@Test
+	public void testImportsSubscriptionsWithTheirTopicsInBatches() throws IOException {
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 25; i++) {
+			ndjson.append(line("user" + i, "https://push.example.com/" + i, "[\"news\",\"user" + i + "\"]"))
+					.append('\n');
+		}
+
+		ImportReport report = new SubscriptionImporter(store, 10).importFrom(stream(ndjson.toString()));
+		assertThat(report.getImported()).isEqualTo(25);
+		assertThat(report.getFailed()).isZero();
+		assertThat(store.getAllUsernameFromTopic("news")).hasSize(25);
+		assertThat(store.getAllTopicsFromUsername("user24")).containsExactlyInAnyOrder("news", "user24");
+		Subscription subscription = store.getSubscriptionsFromUsername("user3").iterator().next();
+		assertThat(subscription.getEndpoint()).isEqualTo("https://push.example.com/3");
+		assertThat(subscription.getExpirationTime()).isEqualTo(1234L);
+		assertThat(subscription.getKeys().getAuth()).isEqualTo(AUTH);
+	}
+
+	@Test
+	public void testReportsTheLinesThatAreNotImported() throws IOException {
+		String ndjson = line("user1", "https://push.example.com/1", "[\"news\"]") + "\n" //
+				+ "{\"username\":\"user2\",\"endpoint\":\n" //
+				+ "\n" //
+				+ line("user3", "not an endpoint", "[]") + "\n" //
+				+ "{\"username\":\"user4\",\"endpoint\":\"https://push.example.com/4\"}\n" //
+				+ line("user5", "https://push.example.com/5", "\"news\"") + "\n" //
+				+ "[1,2]\n" //
+				+ line("user8", "https://push.example.com/8", "[\"news\"]");
+
+		ImportReport report = new SubscriptionImporter(store, 1000).importFrom(stream(ndjson));
+		assertThat(report.getImported()).isEqualTo(2);
+		assertThat(report.getFailed()).isEqualTo(5);
+		assertThat(report.getErrors()).extracting(ImportReport.LineError::getLine).containsExactly(2L, 4L, 5L, 6L,
+				7L);
+		assertThat(report.getErrors().get(2).getMessage()).contains("keys");
+		assertThat(store.getAllUsernameFromTopic("news")).containsExactlyInAnyOrder("user1", "user8");
+		assertThat(store.isSubscribed("https://push.example.com/4")).isFalse();
+	}
+
+	@Test
+	public void testReportsTheKeysThatCannotBeDecoded() throws IOException {
+		byte[] offCurve = new byte[65];
+		offCurve[0] = 4;
+		String ndjson = line("user1", "https://push.example.com/1", "[]") + "\n"
+				+ line("user2", "https://push.example.com/2", "[]", "not base64!", AUTH) + "\n"
+				+ line("user3", "https://push.example.com/3", "[]", p256dh, "c2hvcnQ") + "\n"
+				+ line("user4", "https://push.example.com/4", "[]",
+						Base64.getUrlEncoder().withoutPadding().encodeToString(offCurve), AUTH)
+				+ "\n" + line("user5", "https://push.example.com/5", "[]", p256dh, "c2hvcnQ+/w") + "\n";
+
+		ImportReport report = new SubscriptionImporter(store, 10).importFrom(stream(ndjson));
+		assertThat(report.getImported()).isEqualTo(1);
+		assertThat(report.getErrors()).extracting(ImportReport.LineError::getLine).containsExactly(2L, 3L, 4L, 5L);
+		assertThat(report.getErrors().get(1).getMessage()).contains("keys.auth");
+		assertThat(store.isSubscribed("https://push.example.com/1")).isTrue();
+		assertThat(store.isSubscribed("https://push.example.com/4")).isFalse();
+	}
+
+	@Test
+	public void testReportsTheEndpointsOfOtherPushServices() throws IOException {
+		String ndjson = line("user1", "https://push.example.com/1", "[]") + "\n"
+				+ line("user2", "https://other.example.org/2", "[]") + "\n";
+
+		ImportReport report = new SubscriptionImporter(store, 10,
+				new PushServices(Collections.singletonList("push.example.com")), new CryptoService())
+						.importFrom(stream(ndjson));
+		assertThat(report.getImported()).isEqualTo(1);
+		assertThat(report.getErrors()).extracting(ImportReport.LineError::getLine).containsExactly(2L);
+		assertThat(report.getErrors().get(0).getMessage()).contains("https://other.example.org");
+		assertThat(store.isSubscribed("https://other.example.org/2")).isFalse();
+	}
+
+	@Test
+	public void testReportsTheLinesOfABatchTheStoreRejected() throws IOException {
+		InMemorySubscriptionStore failing = new InMemorySubscriptionStore() {
+			@Override
+			public CompletableFuture<Void> registerUsers(Collection<Subscription> subscriptions,
+					Map<String, ? extends Collection<String>> topicsByUsername) {
+				if (subscriptions.stream().anyMatch(subscription -> subscription.getUsername().equals("user2"))) {
+					return CompletableFuture.failedFuture(new IllegalStateException("store down"));
+				}
+				return super.registerUsers(subscriptions, topicsByUsername);
+			}
+		};
+		String ndjson = line("user1", "https://push.example.com/1", "[]") + "\n"
+				+ line("user2", "https://push.example.com/2", "[]") + "\n"
+				+ line("user3", "https://push.example.com/3", "[]") + "\n";
+
+		ImportReport report = new SubscriptionImporter(failing, 2).importFrom(stream(ndjson));
+		assertThat(report.getImported()).isEqualTo(1);
+		assertThat(report.getErrors()).extracting(ImportReport.LineError::getLine).containsExactly(1L, 2L);
+		assertThat(report.getErrors().get(0).getMessage()).contains("store down");
+		assertThat(failing.isSubscribed("https://push.example.com/3")).isTrue();
+	}
+
+	private static String line(String username, String endpoint, String topics) {
+		return line(username, endpoint, topics, p256dh, AUTH);
+	}
+
+	private static String line(String username, String endpoint, String topics, String p256dh, String auth) {
+		return "{\"username\":\"" + username + "\",\"endpoint\":\"" + endpoint
+				+ "\",\"expirationTime\":1234,\"keys\":{\"p256dh\":\"" + p256dh + "\",\"auth\":\"" + auth
+				+ "\"},\"topics\":" + topics + ",\"ignored\":{\"a\":[1]}}";
+	}
+
+	private static ByteArrayInputStream stream(String ndjson) {
+		return new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
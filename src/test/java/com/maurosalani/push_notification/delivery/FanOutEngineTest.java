@@ -0,0 +1,384 @@
+package com.maurosalani.push_notification.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FanOutEngineTest {
+
+	private HttpServer pushService;
+
+	private final AtomicInteger throttled = new AtomicInteger();
+
+	private InMemoryDeliveryQueue queue;
+
+	private PushTransport transport;
+
+	private FanOutEngine engine;
+
+	private int failureThreshold = 20;
+
+	private final AtomicInteger brokenRequests = new AtomicInteger();
+
+	private final CountDownLatch slowAnswers = new CountDownLatch(1);
+
+	private ExecutorService pushServiceThreads;
+
+	@Before
+	public void setup() throws IOException {
+		pushService = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		pushService.createContext("/ok", exchange -> respond(exchange, 201));
+		pushService.createContext("/gone", exchange -> respond(exchange, 410));
+		pushService.createContext("/throttled", exchange -> {
+			if (throttled.getAndIncrement() == 0) {
+				exchange.getResponseHeaders().add("Retry-After", "0");
+				respond(exchange, 429);
+			} else {
+				respond(exchange, 201);
+			}
+		});
+		pushService.createContext("/broken", exchange -> {
+			brokenRequests.incrementAndGet();
+			respond(exchange, 503);
+		});
+		pushService.createContext("/slow", exchange -> {
+			try {
+				slowAnswers.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			respond(exchange, 201);
+		});
+		pushServiceThreads = Executors.newCachedThreadPool();
+		pushService.setExecutor(pushServiceThreads);
+		pushService.start();
+
+		queue = new InMemoryDeliveryQueue();
+		transport = new PushTransport(HttpClient.Version.HTTP_2, Duration.ofSeconds(5), Duration.ofSeconds(5), 2, 2,
+				100, Duration.ofMinutes(1));
+		engine = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)),
+				origin -> new OriginThrottle(origin, 1000, 10, 100, failureThreshold, 60_000));
+	}
+
+	@After
+	public void tearDown() {
+		slowAnswers.countDown();
+		pushService.stop(0);
+		pushServiceThreads.shutdownNow();
+		transport.shutdown();
+	}
+
+	@Test
+	public void testFailedDeliveriesAreRetriedThenDeadLettered() throws Exception {
+		BroadcastTracker broadcasts = new BroadcastTracker(10, Duration.ofMinutes(1));
+		BroadcastReport report = broadcasts.start();
+		DeliveryWorkers workers = new DeliveryWorkers(queue, engine, broadcasts, endpoint -> {
+		}, 1, 10);
+		try {
+			engine.broadcast(report,
+					Arrays.asList(subscription("/ok"), subscription("/gone"), subscription("/throttled"),
+							subscription("/broken")).iterator(),
+					subscription -> new byte[] { 1 }).get(5, TimeUnit.SECONDS);
+			assertThat(report.getRemoved()).isEqualTo(1);
+
+			for (int i = 0; i < 250 && (report.getRetrying() > 0 || queue.getDeadLetterCount() == 0); i++) {
+				Thread.sleep(20);
+			}
+		} finally {
+			workers.shutdown();
+		}
+
+		assertThat(report.getRetrying()).isZero();
+		assertThat(report.getSent()).isEqualTo(2);
+		assertThat(report.getFailed()).isEqualTo(1);
+		assertThat(queue.getDeadLetters()).extracting(DeliveryTask::getAttempt).containsExactly(2);
+		assertThat(queue.getDeadLetters().get(0).getEndpoint()).endsWith("/broken");
+	}
+
+	@Test
+	public void testOpenCircuitStopsRequestsOnlyToItsOrigin() throws Exception {
+		tearDown();
+		failureThreshold = 1;
+		setup();
+		DeliveryTask broken = new DeliveryTask("id", subscription("/broken").getEndpoint(), new byte[] { 1 }, 0);
+		assertThat(engine.deliver(broken).get(5, TimeUnit.SECONDS)).isEqualTo(DeliveryOutcome.RETRYING);
+		// waits in the queue of its origin until the circuit closes
+		CompletableFuture<DeliveryOutcome> held = engine.deliver(broken);
+
+		// same push service, reached through another origin
+		DeliveryTask other = new DeliveryTask("id",
+				"http://localhost:" + pushService.getAddress().getPort() + "/ok", new byte[] { 1 }, 0);
+		assertThat(engine.deliver(other).get(5, TimeUnit.SECONDS)).isEqualTo(DeliveryOutcome.DELIVERED);
+		assertThat(engine.getOriginThrottles()).extracting(OriginThrottle::getState)
+				.containsExactlyInAnyOrder(OriginThrottle.CircuitState.OPEN, OriginThrottle.CircuitState.CLOSED);
+		assertThat(held).isNotDone();
+		assertThat(brokenRequests.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testSlowOriginDoesNotHoldTheOthers() throws Exception {
+		List<Subscription> subscriptions = new ArrayList<>(Collections.nCopies(10, subscription("/slow")));
+		// same push service, reached through another origin
+		subscriptions.add(new Subscription("user", "http://localhost:" + pushService.getAddress().getPort() + "/ok",
+				null, new SubscriptionKeys("a", "a")));
+
+		CompletableFuture<BroadcastReport> broadcast = engine.broadcast(new BroadcastReport("id"),
+				subscriptions.iterator(), subscription -> new byte[] { 1 });
+		BroadcastReport report = engine.broadcast(new BroadcastReport("other"),
+				Arrays.asList(subscriptions.get(10)).iterator(), subscription -> new byte[] { 1 })
+				.get(5, TimeUnit.SECONDS);
+		assertThat(report.getSent()).isEqualTo(1);
+		assertThat(broadcast).isNotDone();
+
+		slowAnswers.countDown();
+		assertThat(broadcast.get(5, TimeUnit.SECONDS).getSent()).isEqualTo(11);
+	}
+
+	@Test
+	public void testRateLimitedDeliveriesWaitBeforeTheyArePrepared() throws Exception {
+		FanOutEngine limited = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)),
+				origin -> new OriginThrottle(origin, 100, 10, 1, failureThreshold, 60_000));
+		AtomicInteger prepared = new AtomicInteger();
+		BroadcastReport report = limited.broadcast(new BroadcastReport("id"),
+				Collections.nCopies(10, subscription("/ok")).iterator(), subscription -> {
+					prepared.incrementAndGet();
+					return new byte[] { 1 };
+				}).get(5, TimeUnit.SECONDS);
+
+		// one request every 10 ms after the first one
+		assertThat(report.getElapsedMillis()).isGreaterThanOrEqualTo(80);
+		assertThat(report.getSent()).isEqualTo(10);
+		assertThat(report.getRetrying()).isZero();
+		assertThat(prepared.get()).isEqualTo(10);
+		assertThat(queue.size()).isZero();
+	}
+
+	@Test
+	public void testInterruptedDeliveryKeepsItsAttempt() throws Exception {
+		DeliveryTask task = new DeliveryTask("id", subscription("/ok").getEndpoint(), new byte[] { 1 }, 1);
+		Thread.currentThread().interrupt();
+		try {
+			assertThat(engine.deliver(task).get(5, TimeUnit.SECONDS)).isEqualTo(DeliveryOutcome.RETRYING);
+		} finally {
+			Thread.interrupted();
+		}
+		assertThat(queue.poll(10, 1000)).extracting(DeliveryTask::getAttempt).containsExactly(1);
+	}
+
+	@Test
+	public void testOpenCircuitHoldsTheDeliveriesUnencrypted() throws Exception {
+		FanOutEngine breaking = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMinutes(1), Duration.ofMinutes(1)),
+				origin -> new OriginThrottle(origin, 1000, 10, 100, 1, 300));
+		DeliveryTask broken = new DeliveryTask("id", subscription("/broken").getEndpoint(), new byte[] { 1 }, 0);
+		assertThat(breaking.deliver(broken).get(5, TimeUnit.SECONDS)).isEqualTo(DeliveryOutcome.RETRYING);
+
+		AtomicInteger prepared = new AtomicInteger();
+		CompletableFuture<BroadcastReport> broadcast = breaking.broadcast(new BroadcastReport("id"),
+				Collections.nCopies(5, subscription("/ok")).iterator(), subscription -> {
+					prepared.incrementAndGet();
+					return new byte[] { 1 };
+				});
+		// the last attempt is kept for when the circuit closes
+		DeliveryTask last = new DeliveryTask("id", subscription("/ok").getEndpoint(), new byte[] { 1 }, 2);
+		CompletableFuture<DeliveryOutcome> retried = breaking.deliver(last);
+		Thread.sleep(150);
+		assertThat(prepared.get()).isZero();
+		assertThat(broadcast).isNotDone();
+
+		assertThat(broadcast.get(5, TimeUnit.SECONDS).getSent()).isEqualTo(5);
+		assertThat(retried.get(5, TimeUnit.SECONDS)).isEqualTo(DeliveryOutcome.DELIVERED);
+		assertThat(prepared.get()).isEqualTo(5);
+		assertThat(brokenRequests.get()).isEqualTo(1);
+		// only the retry of the request that opened the circuit
+		assertThat(queue.size()).isEqualTo(1);
+		assertThat(queue.getDeadLetterCount()).isZero();
+	}
+
+	@Test
+	public void testPreparationFailuresAreNotRetried() throws Exception {
+		BroadcastReport report = engine.broadcast(new BroadcastReport("id"),
+				Arrays.asList(subscription("/ok")).iterator(), subscription -> null).get(5, TimeUnit.SECONDS);
+		assertThat(report.getFailed()).isEqualTo(1);
+		assertThat(queue.size()).isZero();
+	}
+
+	@Test
+	public void testPreparationErrorsCompleteTheBroadcast() throws Exception {
+		DeliveryExecutor executor = DeliveryExecutor.platform(2);
+		FanOutEngine threaded = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)),
+				origin -> new OriginThrottle(origin, 1000, 10, 100, failureThreshold, 60_000), executor,
+				DeliveryMetrics.disabled());
+		AtomicInteger prepared = new AtomicInteger();
+		DeliveryPreparer failing = subscription -> {
+			if (prepared.incrementAndGet() % 2 == 0) {
+				throw new IllegalStateException("invalid keys");
+			}
+			return new byte[] { 1 };
+		};
+		try {
+			for (FanOutEngine fanOut : Arrays.asList(engine, threaded)) {
+				BroadcastReport report = fanOut.broadcast(new BroadcastReport("id"),
+						Collections.nCopies(10, subscription("/ok")).iterator(), failing).get(5, TimeUnit.SECONDS);
+
+				assertThat(report.getSent()).isEqualTo(5);
+				assertThat(report.getFailed()).isEqualTo(5);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testDeliveriesArePreparedOnTheExecutor() throws Exception {
+		DeliveryExecutor executor = DeliveryExecutor.virtual(4);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		FanOutEngine threaded = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)),
+				origin -> new OriginThrottle(origin, 1000, 10, 100, failureThreshold, 60_000), executor,
+				new DeliveryMetrics(registry));
+		Set<Thread> preparers = ConcurrentHashMap.newKeySet();
+		try {
+			BroadcastReport report = threaded.broadcast(new BroadcastReport("id"),
+					Collections.nCopies(20, subscription("/ok")).iterator(), subscription -> {
+						preparers.add(Thread.currentThread());
+						return new byte[] { 1 };
+					}).get(5, TimeUnit.SECONDS);
+
+			assertThat(report.getSent()).isEqualTo(20);
+			assertThat(preparers).doesNotContain(Thread.currentThread());
+			assertThat(registry.get("push.requests").tag("status", "201").timer().count()).isEqualTo(20);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testVirtualExecutorWaitsForTheAnswersWithinItsBound() throws Exception {
+		DeliveryExecutor executor = DeliveryExecutor.virtual(2);
+		FanOutEngine blocking = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)),
+				origin -> new OriginThrottle(origin, 1000, 10, 100, failureThreshold, 60_000), executor,
+				DeliveryMetrics.disabled());
+		AtomicInteger prepared = new AtomicInteger();
+		try {
+			CompletableFuture<BroadcastReport> broadcast = blocking.broadcast(new BroadcastReport("id"),
+					Collections.nCopies(6, subscription("/slow")).iterator(), subscription -> {
+						prepared.incrementAndGet();
+						return new byte[] { 1 };
+					});
+			long deadline = System.currentTimeMillis() + 2000;
+			while (executor.getRunning() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			// two deliveries wait for their answer, the others for the semaphore
+			assertThat(executor.getRunning()).isEqualTo(2);
+			assertThat(prepared.get()).isEqualTo(2);
+
+			slowAnswers.countDown();
+			assertThat(broadcast.get(5, TimeUnit.SECONDS).getSent()).isEqualTo(6);
+			// the last permit is released after its outcome completed the broadcast
+			deadline = System.currentTimeMillis() + 2000;
+			while (executor.getRunning() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(executor.getRunning()).isZero();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testPlatformExecutorEncryptsOnItsThreads() throws Exception {
+		DeliveryExecutor executor = DeliveryExecutor.platform(0);
+		FanOutEngine pooled = new FanOutEngine(transport, 8, 4, 100,
+				(endpoint, body) -> transport.newRequest(endpoint).POST(HttpRequest.BodyPublishers.ofByteArray(body))
+						.build(),
+				queue, new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50)),
+				origin -> new OriginThrottle(origin, 1000, 10, 100, failureThreshold, 60_000), executor,
+				DeliveryMetrics.disabled());
+		Set<String> preparers = ConcurrentHashMap.newKeySet();
+		AtomicInteger prepared = new AtomicInteger();
+		try {
+			BroadcastReport report = pooled.broadcast(new BroadcastReport("id"),
+					Collections.nCopies(50, subscription("/ok")).iterator(), subscription -> {
+						preparers.add(Thread.currentThread().getName());
+						// every tenth preparation fails
+						return prepared.incrementAndGet() % 10 == 0 ? null : new byte[] { 1 };
+					}).get(5, TimeUnit.SECONDS);
+
+			assertThat(report.getSent()).isEqualTo(45);
+			assertThat(report.getFailed()).isEqualTo(5);
+			assertThat(preparers).allMatch(name -> name.startsWith("delivery-"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRetryAfterIsHonored() {
+		RetryPolicy policy = new RetryPolicy(3, Duration.ofSeconds(1), Duration.ofMinutes(1));
+		DeliveryTask task = new DeliveryTask("id", "endpoint", new byte[0], 0);
+
+		assertThat(policy.delayMillis(task, RetryPolicy.retryAfterMillis("120", 0))).isEqualTo(120_000);
+		assertThat(RetryPolicy.retryAfterMillis("Thu, 01 Jan 1970 00:00:30 GMT", 10_000)).isEqualTo(20_000);
+		assertThat(RetryPolicy.retryAfterMillis("soon", 0)).isEqualTo(-1);
+		assertThat(policy.delayMillis(task.nextAttempt().nextAttempt(), -1)).isBetween(2000L, 4000L);
+		assertThat(policy.canRetry(task.nextAttempt().nextAttempt())).isFalse();
+	}
+
+	private Subscription subscription(String path) {
+		return new Subscription("user", "http://127.0.0.1:" + pushService.getAddress().getPort() + path, null,
+				new SubscriptionKeys("a", "a"));
+	}
+
+	private static void respond(HttpExchange exchange, int statusCode) throws IOException {
+		exchange.getRequestBody().readAllBytes();
+		exchange.sendResponseHeaders(statusCode, -1);
+		exchange.close();
+	}
+
+}
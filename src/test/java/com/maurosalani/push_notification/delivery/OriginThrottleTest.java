@@ -0,0 +1,63 @@
+package com.maurosalani.push_notification.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import com.maurosalani.push_notification.delivery.OriginThrottle.Admission;
+
+public class OriginThrottleTest {
+
+	@Test
+	public void testRequestsBeyondTheBurstWaitForTheirToken() {
+		OriginThrottle throttle = new OriginThrottle("https://push.example.com", 10, 1, 2, 5, 1000);
+		assertThat(throttle.admit(false).isSend()).isTrue();
+		assertThat(throttle.admit(false).isSend()).isTrue();
+
+		Admission third = throttle.admit(false);
+		Admission fourth = throttle.admit(false);
+		assertThat(third.getWait()).isEqualTo(Admission.Wait.RATE_LIMITED);
+		assertThat(third.getDelayMillis()).isBetween(1L, 100L);
+		assertThat(fourth.getDelayMillis()).isGreaterThan(third.getDelayMillis());
+		assertThat(throttle.admit(true).isSend()).isTrue();
+	}
+
+	@Test
+	public void testTooManyRequestsHalvesTheRateAndPauses() {
+		OriginThrottle throttle = new OriginThrottle("https://push.example.com", 100, 10, 10, 5, 1000);
+		throttle.onThrottled(60_000);
+		assertThat(throttle.getRate()).isEqualTo(50);
+		assertThat(throttle.getThrottled()).isEqualTo(1);
+
+		Admission admission = throttle.admit(true);
+		assertThat(admission.getWait()).isEqualTo(Admission.Wait.PAUSED);
+		assertThat(admission.getDelayMillis()).isGreaterThan(59_000);
+
+		throttle.onSuccess();
+		assertThat(throttle.getRate()).isEqualTo(51);
+	}
+
+	@Test
+	public void testCircuitOpensAfterConsecutiveFailuresAndClosesAfterAProbe() throws InterruptedException {
+		OriginThrottle throttle = new OriginThrottle("https://push.example.com", 100, 10, 10, 3, 50);
+		throttle.onFailure();
+		throttle.onFailure();
+		throttle.onSuccess();
+		throttle.onFailure();
+		throttle.onFailure();
+		assertThat(throttle.getState()).isEqualTo(OriginThrottle.CircuitState.CLOSED);
+		throttle.onFailure();
+		assertThat(throttle.getState()).isEqualTo(OriginThrottle.CircuitState.OPEN);
+		assertThat(throttle.admit(false).getWait()).isEqualTo(Admission.Wait.CIRCUIT_OPEN);
+
+		Thread.sleep(60);
+		assertThat(throttle.admit(false).isSend()).isTrue();
+		assertThat(throttle.getState()).isEqualTo(OriginThrottle.CircuitState.HALF_OPEN);
+		assertThat(throttle.admit(false).getWait()).isEqualTo(Admission.Wait.PAUSED);
+
+		throttle.onSuccess();
+		assertThat(throttle.getState()).isEqualTo(OriginThrottle.CircuitState.CLOSED);
+		assertThat(throttle.getOpened()).isEqualTo(1);
+	}
+
+}
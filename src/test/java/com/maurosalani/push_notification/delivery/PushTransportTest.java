@@ -0,0 +1,64 @@
+package com.maurosalani.push_notification.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.net.MalformedURLException;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PushTransportTest {
+
+	private final PushTransport transport = new PushTransport(HttpClient.Version.HTTP_2, Duration.ofSeconds(1),
+			Duration.ofSeconds(1), 2, 1, 10, Duration.ofMinutes(1));
+
+	@After
+	public void tearDown() {
+		transport.shutdown();
+	}
+
+	@Test
+	public void testEndpointIsParsedOnce() throws Exception {
+		PushEndpoint endpoint = transport.endpoint("https://fcm.googleapis.com:443/fcm/send/abc");
+
+		assertThat(endpoint.getOrigin()).isEqualTo("https://fcm.googleapis.com");
+		assertThat(endpoint.getUri().getPath()).isEqualTo("/fcm/send/abc");
+		assertThat(transport.endpoint("https://fcm.googleapis.com:443/fcm/send/abc")).isSameAs(endpoint);
+		assertThat(transport.endpoint("http://127.0.0.1:8080/push").getOrigin()).isEqualTo("http://127.0.0.1:8080");
+	}
+
+	@Test
+	public void testInvalidEndpointsAreRejected() {
+		assertThatThrownBy(() -> transport.endpoint("not an endpoint")).isInstanceOf(MalformedURLException.class);
+		assertThatThrownBy(() -> transport.endpoint("ftp://push.example.com/abc"))
+				.isInstanceOf(MalformedURLException.class);
+		assertThatThrownBy(() -> transport.endpoint("https:///abc")).isInstanceOf(MalformedURLException.class);
+	}
+
+	@Test
+	public void testOnlyTheAllowedPushServicesGetClients() throws Exception {
+		PushTransport allowing = new PushTransport(HttpClient.Version.HTTP_2, Duration.ofSeconds(1),
+				Duration.ofSeconds(1), 2, 1, 10, Duration.ofMinutes(1),
+				new PushServices(Arrays.asList("fcm.googleapis.com", "notify.windows.com")));
+		try {
+			assertThat(allowing.allows(allowing.endpoint("https://fcm.googleapis.com/fcm/send/abc"))).isTrue();
+			assertThat(allowing.allows(allowing.endpoint("https://wns2-db5p.notify.windows.com/w/?token=a")))
+					.isTrue();
+			assertThat(allowing.allows(allowing.endpoint("https://notify.windows.com.example.com/abc"))).isFalse();
+
+			PushEndpoint other = allowing.endpoint("https://push.example.com/abc");
+			assertThat(allowing.allows(other)).isFalse();
+			assertThat(allowing.sendAsync(other, allowing.newRequest(other).build(),
+					HttpResponse.BodyHandlers.discarding())).isCompletedExceptionally();
+			assertThat(allowing.getOriginCount()).isZero();
+		} finally {
+			allowing.shutdown();
+		}
+	}
+
+}
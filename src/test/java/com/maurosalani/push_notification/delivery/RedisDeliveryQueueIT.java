@@ -0,0 +1,96 @@
+package com.maurosalani.push_notification.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+
+public class RedisDeliveryQueueIT {
+
+	private RedissonClient redisson;
+
+	private RedisDeliveryQueue queue;
+
+	@Before
+	public void setup() {
+		Config config = new Config();
+		config.useSingleServer().setAddress("redis://127.0.0.1:6379");
+		redisson = Redisson.create(config);
+		redisson.getKeys().delete("delivery_queue", "delivery_dead_letter", "redisson_delay_queue:{delivery_queue}",
+				"redisson_delay_queue_timeout:{delivery_queue}");
+		redisson.getKeys().deleteByPattern("delivery_processing*");
+		queue = new RedisDeliveryQueue(redisson, 100);
+	}
+
+	@After
+	public void tearDown() {
+		queue.shutdown();
+		redisson.shutdown();
+	}
+
+	@Test
+	public void testScheduledTaskIsPolledAfterItsDelay() throws InterruptedException {
+		queue.schedule(new DeliveryTask("id", "endpoint1", new byte[] { 1, 2 }, 1), 1500);
+		queue.schedule(new DeliveryTask("id", "endpoint2", new byte[] { 3 }, 0), 0);
+
+		assertThat(queue.poll(10, 1000)).extracting(DeliveryTask::getEndpoint).containsExactly("endpoint2");
+		assertThat(queue.poll(10, 50)).isEmpty();
+
+		List<DeliveryTask> delayed = queue.poll(10, 5000);
+		assertThat(delayed).hasSize(1);
+		assertThat(delayed.get(0).getEndpoint()).isEqualTo("endpoint1");
+		assertThat(delayed.get(0).getBody()).containsExactly(1, 2);
+		assertThat(delayed.get(0).getAttempt()).isEqualTo(1);
+	}
+
+	@Test
+	public void testDueTasksArePolledInBatches() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			queue.schedule(new DeliveryTask("id", "endpoint" + i, new byte[] { 1 }, 0), 0);
+		}
+
+		assertThat(queue.poll(2, 1000)).extracting(DeliveryTask::getEndpoint).containsExactly("endpoint0",
+				"endpoint1");
+		assertThat(queue.poll(2, 1000)).extracting(DeliveryTask::getEndpoint).containsExactly("endpoint2");
+	}
+
+	@Test
+	public void testTasksOfAStoppedInstanceAreRequeued() throws InterruptedException {
+		queue.schedule(new DeliveryTask("id", "endpoint1", new byte[] { 1 }, 0), 0);
+		queue.schedule(new DeliveryTask("id", "endpoint2", new byte[] { 1 }, 0), 0);
+		List<DeliveryTask> polled = queue.poll(10, 1000);
+		queue.complete(polled.get(0));
+		queue.shutdown();
+		Thread.sleep(1000);
+
+		queue = new RedisDeliveryQueue(redisson, 100);
+		assertThat(queue.poll(10, 1000)).extracting(DeliveryTask::getEndpoint).containsExactly("endpoint2");
+	}
+
+	@Test
+	public void testTasksOfARunningInstanceAreNotRequeued() throws InterruptedException {
+		queue.schedule(new DeliveryTask("id", "endpoint1", new byte[] { 1 }, 0), 0);
+		assertThat(queue.poll(10, 1000)).hasSize(1);
+		Thread.sleep(1000);
+
+		RedisDeliveryQueue other = new RedisDeliveryQueue(redisson, 100);
+		try {
+			assertThat(other.poll(10, 50)).isEmpty();
+		} finally {
+			other.shutdown();
+		}
+	}
+
+	@Test
+	public void testDeadLettersAreCounted() {
+		queue.deadLetter(new DeliveryTask("id", "endpoint1", new byte[] { 1 }, 4));
+		assertThat(queue.getDeadLetterCount()).isEqualTo(1);
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.maurosalani.push_notification.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+public class ExpirationSweeperTest {
+
+	private InMemorySubscriptionStore store;
+
+	private List<List<String>> batches;
+
+	private ExpirationSweeper sweeper;
+
+	@Before
+	public void setup() {
+		store = new InMemorySubscriptionStore();
+		batches = new ArrayList<>();
+		sweeper = new ExpirationSweeper(store, Duration.ofHours(1), 2,
+				endpoints -> batches.add(new ArrayList<>(endpoints)));
+	}
+
+	@After
+	public void tearDown() {
+		sweeper.shutdown();
+	}
+
+	@Test
+	public void testSweepRemovesTheExpiredSubscriptionsInBatches() {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			store.registerUser(new Subscription("user" + i, "expired" + i, now - 1000 + i, keys()));
+		}
+		store.registerUser(new Subscription("user0", "valid", now + 60_000, keys()));
+		store.registerUser(new Subscription("user5", "forever", null, keys()));
+
+		assertThat(sweeper.sweep()).isEqualTo(5);
+		assertThat(batches).containsExactly(List.of("expired0", "expired1"), List.of("expired2", "expired3"),
+				List.of("expired4"));
+		assertThat(store.getSubscriptionsFromUsername("user0")).extracting(Subscription::getEndpoint)
+				.containsExactly("valid");
+		assertThat(store.isSubscribed("forever")).isTrue();
+		assertThat(sweeper.sweep()).isZero();
+	}
+
+	@Test
+	public void testSweepGoesOnAfterABatchOfEndpointsAlreadyUnregistered() {
+		long now = System.currentTimeMillis();
+		store = new InMemorySubscriptionStore() {
+
+			private boolean stale = true;
+
+			@Override
+			public ExpiredBatch unregisterExpired(long now, int limit) {
+				if (stale) {
+					stale = false;
+					return new ExpiredBatch(limit, List.of());
+				}
+				return super.unregisterExpired(now, limit);
+			}
+
+		};
+		sweeper.shutdown();
+		sweeper = new ExpirationSweeper(store, Duration.ofHours(1), 2,
+				endpoints -> batches.add(new ArrayList<>(endpoints)));
+		store.registerUser(new Subscription("user0", "expired0", now - 1000, keys()));
+
+		assertThat(sweeper.sweep()).isEqualTo(1);
+		assertThat(batches).containsExactly(List.of("expired0"));
+	}
+
+	private static SubscriptionKeys keys() {
+		return new SubscriptionKeys("a", "a");
+	}
+
+}
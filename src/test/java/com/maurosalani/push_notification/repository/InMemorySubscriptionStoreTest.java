@@ -0,0 +1,146 @@
+package com.maurosalani.push_notification.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+public class InMemorySubscriptionStoreTest {
+
+	private InMemorySubscriptionStore store;
+
+	@Before
+	public void setup() {
+		store = new InMemorySubscriptionStore();
+	}
+
+	@Test
+	public void testSubscribeAndUnsubscribeFromTopics() {
+		store.subscribeUserToTopic("topic1", "user1");
+		store.subscribeUserToTopic("topic1", "user2");
+		store.subscribeUserToTopic("topic2", "user1");
+		assertThat(store.getAllUsernameFromTopic("topic1")).containsExactlyInAnyOrder("user1", "user2");
+		assertThat(store.getAllTopicsFromUsername("user1")).containsExactlyInAnyOrder("topic1", "topic2");
+
+		store.unsubscribeUserFromTopic("topic1", "user1");
+		assertThat(store.getAllUsernameFromTopic("topic1")).containsExactly("user2");
+
+		store.unsubscribeUsernameFromAllTopics("user1");
+		assertThat(store.getAllUsernameFromTopic("topic2")).isEmpty();
+		assertThat(store.getAllTopicsFromUsername("user1")).isEmpty();
+		assertThat(store.getAllUsernameFromTopic("unknown")).isEmpty();
+	}
+
+	@Test
+	public void testEveryDeviceOfAUserIsKept() {
+		store.registerUser(subscription("user1", "endpoint1"));
+		store.registerUser(subscription("user1", "endpoint2"));
+		store.registerUser(subscription("user1", "endpoint2"));
+		store.subscribeUserToTopic("topic1", "user1");
+		assertThat(store.isSubscribed("endpoint1")).isTrue();
+		assertThat(store.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactlyInAnyOrder("endpoint1", "endpoint2");
+		List<Subscription> subscriptions = new ArrayList<>();
+		store.scanSubscriptionsFromTopic("topic1", 10).forEachRemaining(subscriptions::add);
+		assertThat(subscriptions).hasSize(2);
+
+		store.unregisterUserByEndpoint("endpoint1");
+		assertThat(store.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint2");
+		assertThat(store.getAllUsernameFromTopic("topic1")).containsExactly("user1");
+	}
+
+	@Test
+	public void testRegisterMovesTheEndpointOfAnotherUser() {
+		store.registerUser(subscription("user1", "endpoint1"));
+		store.registerUser(subscription("user1", "endpoint2"));
+		store.registerUser(subscription("user2", "endpoint1"));
+		assertThat(store.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint2");
+		assertThat(store.getSubscriptionsFromUsername("user2")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint1");
+		// the moved endpoint is still indexed by its expiration
+		assertThat(store.unregisterExpired(2, 10).getRemoved()).containsExactlyInAnyOrder("endpoint1", "endpoint2");
+	}
+
+	@Test
+	public void testUnregisterRemovesTheUserFromItsTopics() {
+		store.registerUser(subscription("user1", "endpoint1"));
+		store.registerUser(subscription("user2", "endpoint2"));
+		store.subscribeUserToTopic("topic1", "user1");
+		store.subscribeUserToTopic("topic1", "user2");
+
+		store.unregisterUserByEndpoint("endpoint1");
+		assertThat(store.getSubscriptionsFromUsername("user1")).isEmpty();
+		assertThat(store.getAllUsernameFromTopic("topic1")).containsExactly("user2");
+
+		store.unregisterUserByUsername("user2");
+		assertThat(store.isSubscribed("endpoint2")).isFalse();
+		assertThat(store.getAllUsernameFromTopic("topic1")).isEmpty();
+	}
+
+	@Test
+	public void testScanSkipsUsersWithoutSubscription() {
+		for (int i = 0; i < 5; i++) {
+			store.registerUser(subscription("user" + i, "endpoint" + i));
+			store.subscribeUserToTopic("topic1", "user" + i);
+		}
+		store.subscribeUserToTopic("topic1", "unregistered");
+
+		List<Subscription> subscriptions = new ArrayList<>();
+		store.scanSubscriptionsFromTopic("topic1", 2).forEachRemaining(subscriptions::add);
+		assertThat(subscriptions).extracting(Subscription::getEndpoint).containsExactlyInAnyOrder("endpoint0",
+				"endpoint1", "endpoint2", "endpoint3", "endpoint4");
+		assertThat(store.getSubscriptions(Arrays.asList("user0", "unregistered"))).containsOnlyKeys("user0");
+	}
+
+	@Test
+	public void testUnregisterUsersByEndpoints() {
+		List<String> endpoints = new ArrayList<>();
+		for (int i = 0; i < 1200; i++) {
+			store.registerUser(subscription("user" + i, "endpoint" + i));
+			store.subscribeUserToTopic("topic1", "user" + i);
+			endpoints.add("endpoint" + i);
+		}
+		store.registerUser(subscription("kept", "kept-endpoint"));
+		store.subscribeUserToTopic("topic1", "kept");
+		endpoints.add("unknown");
+
+		assertThat(store.unregisterUsersByEndpoints(endpoints)).isEqualTo(1200);
+		assertThat(store.getAllUsernameFromTopic("topic1")).containsExactly("kept");
+		assertThat(store.isSubscribed("kept-endpoint")).isTrue();
+	}
+
+	@Test
+	public void testUnregisterExpiredRemovesTheOldestFirst() {
+		store.registerUser(new Subscription("user1", "endpoint1", 100L, new SubscriptionKeys("a", "a")));
+		store.registerUser(new Subscription("user1", "endpoint2", 300L, new SubscriptionKeys("a", "a")));
+		store.registerUser(new Subscription("user2", "endpoint3", 200L, new SubscriptionKeys("a", "a")));
+		store.registerUser(new Subscription("user3", "endpoint4", null, new SubscriptionKeys("a", "a")));
+		// registered again with a later expiration
+		store.registerUser(new Subscription("user2", "endpoint3", 1000L, new SubscriptionKeys("a", "a")));
+		store.subscribeUserToTopic("topic1", "user1");
+
+		assertThat(store.unregisterExpired(300, 1).getRemoved()).containsExactly("endpoint1");
+		assertThat(store.unregisterExpired(300, 10).getRemoved()).containsExactly("endpoint2");
+		assertThat(store.unregisterExpired(300, 10).getScanned()).isZero();
+		assertThat(store.getAllUsernameFromTopic("topic1")).isEmpty();
+		assertThat(store.isSubscribed("endpoint3")).isTrue();
+		assertThat(store.isSubscribed("endpoint4")).isTrue();
+
+		store.unregisterUserByEndpoint("endpoint3");
+		assertThat(store.unregisterExpired(Long.MAX_VALUE, 10).getScanned()).isZero();
+	}
+
+	private static Subscription subscription(String username, String endpoint) {
+		return new Subscription(username, endpoint, 1L, new SubscriptionKeys("a", "a"));
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.maurosalani.push_notification.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IntHashSetTest {
+
+	@Test
+	public void testBehavesLikeAHashSet() {
+		IntHashSet set = new IntHashSet();
+		Set<Integer> expected = new HashSet<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100_000; i++) {
+			int value = random.nextInt(2000);
+			if (random.nextInt(3) == 0) {
+				assertThat(set.remove(value)).isEqualTo(expected.remove(value));
+			} else {
+				assertThat(set.add(value)).isEqualTo(expected.add(value));
+			}
+		}
+		assertThat(set.size()).isEqualTo(expected.size());
+		for (int value = 0; value < 2000; value++) {
+			assertThat(set.contains(value)).isEqualTo(expected.contains(value));
+		}
+		assertThat(set.toArray()).containsExactlyInAnyOrder(expected.stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	@Test
+	public void testShrinksWhenEmptied() {
+		IntHashSet set = new IntHashSet();
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			set.remove(i);
+		}
+		assertThat(set.isEmpty()).isTrue();
+		assertThat(set.add(7)).isTrue();
+		assertThat(set.toArray()).containsExactly(7);
+	}
+
+}
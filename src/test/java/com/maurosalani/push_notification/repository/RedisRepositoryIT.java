@@ -1,11 +1,22 @@
 package com.maurosalani.push_notification.repository;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.redisson.client.codec.StringCodec;
 
 import com.maurosalani.push_notification.dto.Subscription;
 import com.maurosalani.push_notification.dto.SubscriptionKeys;
@@ -18,9 +29,14 @@ public class RedisRepositoryIT {
 	@Before
 	public void setup() {
 		repository = new RedisRepository();
-		repository.topic_username.clear();
-		repository.username_subscription.clear();
+		repository.redisson.getKeys().deleteByPattern("topic_username:*");
+		repository.redisson.getKeys().deleteByPattern("username_topic:*");
+		repository.redisson.getKeys().deleteByPattern("username_endpoints:*");
+		repository.endpoint_subscription.clear();
 		repository.sub_endpoint_username.clear();
+		repository.redisson.getKeys().delete("subscription_expiration", "username_subscription",
+				"sub_endpoint_username:baseline");
+		repository.redisson.getSetMultimap("topic_username").delete();
 	}
 
 	@Test
@@ -56,7 +72,7 @@ public class RedisRepositoryIT {
 		Subscription subscription1 = new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a"));
 		repository.registerUser(subscription1);
 		repository.unregisterUserByEndpoint("endpoint1");
-		assertThat(repository.getSubscriptionFromUsername("user1")).isNull();
+		assertThat(repository.getSubscriptionsFromUsername("user1")).isEmpty();
 	}
 	
 	@Test
@@ -64,6 +80,249 @@ public class RedisRepositoryIT {
 		Subscription subscription1 = new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a"));
 		repository.registerUser(subscription1);
 		repository.unregisterUserByUsername("user1");
-		assertThat(repository.getSubscriptionFromUsername("user1")).isNull();
+		assertThat(repository.getSubscriptionsFromUsername("user1")).isEmpty();
+	}
+
+	@Test
+	public void testGetSubscriptionsOfManyUsers() {
+		Subscription subscription1 = new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a"));
+		Subscription subscription2 = new Subscription("user2", "endpoint2", 1L, new SubscriptionKeys("b", "b"));
+		repository.registerUser(subscription1);
+		repository.registerUser(subscription2);
+		Map<String, Collection<Subscription>> subscriptions = repository
+				.getSubscriptions(Arrays.asList("user1", "user2", "user3"));
+		assertThat(subscriptions).containsOnlyKeys("user1", "user2");
+		assertThat(subscriptions.get("user1")).containsExactly(subscription1);
+		assertThat(subscriptions.get("user2")).containsExactly(subscription2);
+	}
+
+	@Test
+	public void testStreamSubscriptionsInChunks() {
+		List<String> usernames = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			repository.registerUser(new Subscription("user" + i, "endpoint" + i, 1L, new SubscriptionKeys("a", "a")));
+			usernames.add("user" + i);
+		}
+		usernames.add("missing");
+
+		List<Subscription> subscriptions = new ArrayList<>();
+		Iterator<Collection<Subscription>> chunks = repository.streamSubscriptions(usernames.iterator(), 2);
+		int chunkCount = 0;
+		while (chunks.hasNext()) {
+			subscriptions.addAll(chunks.next());
+			chunkCount++;
+		}
+		assertThat(chunkCount).isEqualTo(3);
+		assertThat(subscriptions).extracting(Subscription::getEndpoint).containsExactlyInAnyOrder("endpoint0",
+				"endpoint1", "endpoint2", "endpoint3", "endpoint4");
+	}
+
+	@Test
+	public void testScanSubscriptionsFromTopic() {
+		for (int i = 0; i < 5; i++) {
+			repository.registerUser(new Subscription("user" + i, "endpoint" + i, 1L, new SubscriptionKeys("a", "a")));
+			repository.subscribeUserToTopic("topic1", "user" + i);
+		}
+		repository.subscribeUserToTopic("topic1", "unregistered");
+		repository.subscribeUserToTopic("topic2", "user0");
+
+		List<Subscription> subscriptions = new ArrayList<>();
+		repository.scanSubscriptionsFromTopic("topic1", 2).forEachRemaining(subscriptions::add);
+		assertThat(subscriptions).extracting(Subscription::getEndpoint).containsExactlyInAnyOrder("endpoint0",
+				"endpoint1", "endpoint2", "endpoint3", "endpoint4");
+		assertThat(repository.scanSubscriptionsFromTopic("topic3", 2).hasNext()).isFalse();
+	}
+
+	@Test
+	public void testUnsubscribeUsernameFromAllTopicsUsesReverseIndex() {
+		repository.subscribeUserToTopic("topic1", "user1");
+		repository.subscribeUserToTopic("topic2", "user1");
+		repository.subscribeUserToTopic("topic2", "user2");
+		assertThat(repository.getAllTopicsFromUsername("user1")).containsExactlyInAnyOrder("topic1", "topic2");
+
+		repository.unsubscribeUsernameFromAllTopics("user1");
+		assertThat(repository.getAllUsernameFromTopic("topic1")).isEmpty();
+		assertThat(repository.getAllUsernameFromTopic("topic2")).containsExactly("user2");
+		assertThat(repository.getAllTopicsFromUsername("user1")).isEmpty();
+	}
+
+	@Test
+	public void testUnregisterUserRemovesItFromItsTopics() {
+		repository.registerUser(new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		repository.subscribeUserToTopic("topic1", "user1");
+		repository.unregisterUserByEndpoint("endpoint1");
+		assertThat(repository.getAllUsernameFromTopic("topic1")).isEmpty();
+		assertThat(repository.getAllTopicsFromUsername("user1")).isEmpty();
+	}
+
+	@Test
+	public void testEveryDeviceOfAUserIsKept() {
+		repository.registerUser(new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user1", "endpoint2", 1L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user1", "endpoint2", 2L, new SubscriptionKeys("b", "b")));
+		repository.subscribeUserToTopic("topic1", "user1");
+		assertThat(repository.isSubscribed("endpoint1")).isTrue();
+		assertThat(repository.getSubscriptionsFromUsername("user1")).extracting(Subscription::getExpirationTime)
+				.containsExactlyInAnyOrder(1L, 2L);
+		List<Subscription> subscriptions = new ArrayList<>();
+		repository.scanSubscriptionsFromTopic("topic1", 10).forEachRemaining(subscriptions::add);
+		assertThat(subscriptions).extracting(Subscription::getEndpoint).containsExactlyInAnyOrder("endpoint1",
+				"endpoint2");
+
+		// a 410 of one device keeps the others and the topics
+		assertThat(repository.unregisterUsersByEndpoints(Arrays.asList("endpoint1"))).isEqualTo(1);
+		assertThat(repository.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint2");
+		assertThat(repository.getAllUsernameFromTopic("topic1")).containsExactly("user1");
+	}
+
+	@Test
+	public void testRegisterMovesTheEndpointOfAnotherUser() {
+		repository.registerUser(new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user1", "endpoint2", 1L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user2", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		assertThat(repository.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint2");
+		assertThat(repository.getSubscriptionsFromUsername("user2")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint1");
+	}
+
+	@Test
+	public void testUnregisterExpiredKeepsTheOtherDevices() {
+		repository.registerUser(new Subscription("user1", "endpoint1", 100L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user1", "endpoint2", 300L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user2", "endpoint3", 200L, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user2", "endpoint3", null, new SubscriptionKeys("a", "a")));
+		repository.registerUser(new Subscription("user3", "endpoint4", 250L, new SubscriptionKeys("a", "a")));
+		repository.unregisterUserByUsername("user3");
+		repository.subscribeUserToTopic("topic1", "user1");
+
+		assertThat(repository.unregisterExpired(250, 10).getRemoved()).containsExactly("endpoint1");
+		assertThat(repository.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint2");
+		assertThat(repository.getAllUsernameFromTopic("topic1")).containsExactly("user1");
+		assertThat(repository.isSubscribed("endpoint3")).isTrue();
+
+		ExpiredBatch batch = repository.unregisterExpired(300, 10);
+		assertThat(batch.getRemoved()).containsExactly("endpoint2");
+		assertThat(batch.getScanned()).isEqualTo(1);
+		assertThat(repository.getAllUsernameFromTopic("topic1")).isEmpty();
+		assertThat(repository.redisson.getScoredSortedSet("subscription_expiration").size()).isZero();
+	}
+
+	@Test
+	public void testFirstReleaseLayoutIsMigrated() {
+		Subscription subscription = new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a"));
+		// written with the default codec, as the first release did
+		repository.redisson.<String, Subscription>getMap("username_subscription").put("user1", subscription);
+		repository.redisson.<String, String>getMap("sub_endpoint_username").put("endpoint1", "user1");
+		repository.redisson.<String, String>getSetMultimap("topic_username").put("topic1", "user1");
+
+		RedisRepository migrated = new RedisRepository();
+		assertThat(migrated.getSubscriptionsFromUsername("user1")).containsExactly(subscription);
+		assertThat(migrated.sub_endpoint_username.readAllMap()).containsOnly(entry("endpoint1", "user1"));
+		assertThat(migrated.getAllUsernameFromTopic("topic1")).containsExactly("user1");
+		assertThat(migrated.redisson.getKeys().countExists("username_subscription")).isZero();
+		assertThat(migrated.redisson.getKeys().countExists("sub_endpoint_username:baseline")).isZero();
+		assertThat(migrated.redisson.getKeys().countExists("topic_username")).isZero();
+	}
+
+	@Test
+	public void testFirstReleaseLayoutIsKeptWhenItCannotBeRead() {
+		repository.redisson.<String, String>getMap("username_subscription", StringCodec.INSTANCE).put("user1",
+				"unreadable");
+		repository.redisson.<String, String>getMap("sub_endpoint_username").put("endpoint1", "user1");
+
+		new RedisRepository();
+		assertThat(repository.redisson.getKeys().countExists("username_subscription")).isOne();
+		assertThat(repository.redisson.<String, String>getMap("sub_endpoint_username:baseline").get("endpoint1"))
+				.isEqualTo("user1");
+	}
+
+	@Test
+	public void testUnregisterUserByUsernameRemovesItsEndpoint() {
+		repository.registerUser(new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		repository.subscribeUserToTopic("topic1", "user1");
+		repository.unregisterUserByUsername("user1");
+		assertThat(repository.isSubscribed("endpoint1")).isFalse();
+		assertThat(repository.getAllUsernameFromTopic("topic1")).isEmpty();
+	}
+
+	@Test
+	public void testUnregisterUsersByEndpoints() {
+		List<String> endpoints = new ArrayList<>();
+		for (int i = 0; i < 1200; i++) {
+			repository.registerUser(new Subscription("user" + i, "endpoint" + i, 1L, new SubscriptionKeys("a", "a")));
+			repository.subscribeUserToTopic("topic1", "user" + i);
+			endpoints.add("endpoint" + i);
+		}
+		repository.registerUser(new Subscription("kept", "kept-endpoint", 1L, new SubscriptionKeys("a", "a")));
+		repository.subscribeUserToTopic("topic1", "kept");
+		endpoints.add("unknown");
+
+		assertThat(repository.unregisterUsersByEndpoints(endpoints)).isEqualTo(1200);
+		assertThat(repository.getAllUsernameFromTopic("topic1")).containsExactly("kept");
+		assertThat(repository.isSubscribed("endpoint0")).isFalse();
+		assertThat(repository.getSubscriptionsFromUsername("user1199")).isEmpty();
+		assertThat(repository.isSubscribed("kept-endpoint")).isTrue();
+	}
+
+	@Test
+	public void testRegisterUsersInOnePipeline() {
+		repository.registerUser(new Subscription("user0", "old-endpoint", 1L, new SubscriptionKeys("a", "a")));
+		List<Subscription> subscriptions = new ArrayList<>();
+		Map<String, List<String>> topics = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			subscriptions.add(new Subscription("user" + i, "endpoint" + i, 1L, new SubscriptionKeys("a", "a")));
+			topics.put("user" + i, Arrays.asList("topic1", "topic" + (i % 2 == 0 ? "Even" : "Odd")));
+		}
+
+		repository.registerUsers(subscriptions, topics).join();
+		assertThat(repository.getAllUsernameFromTopic("topic1")).hasSize(100);
+		assertThat(repository.getAllUsernameFromTopic("topicEven")).hasSize(50).contains("user0");
+		assertThat(repository.getAllTopicsFromUsername("user1")).containsExactlyInAnyOrder("topic1", "topicOdd");
+		assertThat(repository.getSubscriptionsFromUsername("user99")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint99");
+		assertThat(repository.isSubscribed("endpoint0")).isTrue();
+		assertThat(repository.getSubscriptionsFromUsername("user0")).hasSize(2);
+	}
+
+	@Test
+	public void testNearCacheServesRepeatedReads() {
+		repository.registerUser(new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		RedisRepository cached = new RedisRepository(null, 100, Duration.ofMinutes(1));
+
+		assertThat(cached.isSubscribed("endpoint1")).isTrue();
+		assertThat(cached.isSubscribed("endpoint1")).isTrue();
+		assertThat(cached.getSubscriptionsFromUsername("user1")).extracting(Subscription::getEndpoint)
+				.containsExactly("endpoint1");
+		assertThat(cached.getSubscriptions(Arrays.asList("user1"))).containsOnlyKeys("user1");
+		assertThat(cached.getNearCache().getHits()).isEqualTo(2);
+		assertThat(cached.getNearCache().getMisses()).isEqualTo(2);
+	}
+
+	@Test
+	public void testNearCacheIsInvalidatedByChangesOnAnotherInstance() throws InterruptedException {
+		RedisRepository node1 = new RedisRepository(null, 100, Duration.ofMinutes(1));
+		RedisRepository node2 = new RedisRepository(null, 100, Duration.ofMinutes(1));
+		assertThat(node1.isSubscribed("endpoint1")).isFalse();
+
+		node2.registerUser(new Subscription("user1", "endpoint1", 1L, new SubscriptionKeys("a", "a")));
+		assertThat(node2.isSubscribed("endpoint1")).isTrue();
+		awaitSubscribed(node1, "endpoint1", true);
+		assertThat(node1.getSubscriptionsFromUsername("user1")).isNotEmpty();
+
+		node2.unregisterUserByEndpoint("endpoint1");
+		awaitSubscribed(node1, "endpoint1", false);
+		assertThat(node1.getSubscriptionsFromUsername("user1")).isEmpty();
+	}
+
+	// invalidations are delivered asynchronously through pub/sub
+	private static void awaitSubscribed(RedisRepository repository, String endpoint, boolean expected)
+			throws InterruptedException {
+		for (int i = 0; i < 100 && repository.isSubscribed(endpoint) != expected; i++) {
+			Thread.sleep(20);
+		}
+		assertThat(repository.isSubscribed(endpoint)).isEqualTo(expected);
 	}
 }
@@ -0,0 +1,54 @@
+package com.maurosalani.push_notification.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import org.junit.Test;
+
+import com.maurosalani.push_notification.dto.Subscription;
+import com.maurosalani.push_notification.dto.SubscriptionKeys;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class SubscriptionCodecTest {
+
+	private final SubscriptionCodec codec = SubscriptionCodec.INSTANCE;
+
+	@Test
+	public void testBrowserKeysAreStoredRaw() throws IOException {
+		byte[] p256dh = new byte[65];
+		byte[] auth = new byte[16];
+		new SecureRandom().nextBytes(p256dh);
+		new SecureRandom().nextBytes(auth);
+		Subscription subscription = new Subscription("user1", "https://push.example.com/abc", 1L,
+				new SubscriptionKeys(Base64.getUrlEncoder().withoutPadding().encodeToString(p256dh),
+						Base64.getUrlEncoder().withoutPadding().encodeToString(auth)));
+
+		ByteBuf encoded = codec.getValueEncoder().encode(subscription);
+
+		// version, flags, 4 length prefixes, strings, expiration time and raw keys
+		assertThat(encoded.readableBytes()).isEqualTo(2 + 4 + 5 + 28 + 8 + 65 + 16);
+		assertThat(codec.getValueDecoder().decode(encoded, null)).isEqualTo(subscription);
+	}
+
+	@Test
+	public void testKeysThatAreNotBase64AreKeptAsText() throws IOException {
+		Subscription subscription = new Subscription("user1", "endpoint1", null, new SubscriptionKeys("a", "a=="));
+
+		ByteBuf encoded = codec.getValueEncoder().encode(subscription);
+
+		assertThat(codec.getValueDecoder().decode(encoded, null)).isEqualTo(subscription);
+	}
+
+	@Test
+	public void testUnknownVersionIsRejected() {
+		ByteBuf encoded = Unpooled.wrappedBuffer(new byte[] { 42, 0 });
+		assertThatThrownBy(() -> codec.getValueDecoder().decode(encoded, null)).isInstanceOf(IOException.class);
+	}
+
+}